@@ -1,40 +1,372 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.Serial;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import static gitlet.Utils.*;
 
+/** The contents of one version of a file.
+ *
+ *  Small files are stored inline in the blob record. Larger files are cut
+ *  into content-defined chunks (see Chunker), each stored once in the
+ *  chunk store under its own SHA-1 hash, and the blob record lists the
+ *  chunk IDs in order. The blob ID is always the SHA-1 hash of the whole
+ *  file, however it is stored.
+ */
 public class Blob implements Serializable {
 
+    /** Kept equal to the implicit value of the original serialized class,
+     *  so blobs written with Java serialization remain readable. */
+    @Serial
+    private static final long serialVersionUID = 1387017181355091720L;
+    /** The first two bytes of an encoded blob record. */
+    private static final int ENCODING_MAGIC = 0x4742; // "GB"
+    /** The version of the encoding written by saveBlob. */
+    private static final int ENCODING_VERSION = 1;
+    /** Kinds of blob record: contents inline, or a list of chunk IDs. */
+    private static final int INLINE = 0;
+    private static final int CHUNKED = 1;
+    /** Files shorter than this are stored inline; chunking them would
+     *  only add objects without sharing anything. */
+    static final int INLINE_LIMIT = 8 * 1024;
+    /** Where the contents start in an inline blob record: after the magic
+     *  number, the version and the kind. */
+    private static final int INLINE_CONTENT_OFFSET = 4;
+
+    /** Extensions of file types that are compressed already. Their blobs
+     *  and chunks are stored as they are, without trying to compress them
+     *  again. */
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "gz", "tgz", "zip", "jar", "xz", "bz2", "zst", "7z", "rar",
+            "png", "jpg", "jpeg", "gif", "webp", "mp3", "mp4", "mkv", "mov", "ogg");
+
+    /** The most threads checkOutBlobs writes files on. Writing is bound by
+     *  the latency of the file system more than by the processors, so
+     *  there can be more threads than processors. */
+    private static final int CHECKOUT_THREADS =
+            Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+    /** The most bytes of file contents checkOutBlobs writes at once. */
+    private static final int CHECKOUT_BUDGET = 64 << 20;
+
+    /** The size of the buffer used to read files. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Blob records already read during this command. */
+    private static final ObjectCache<byte[]> CACHE = new ObjectCache<>("blob", 16L << 20);
+
+    /** The contents of a blob read from an older, serialized blob. */
     private byte[] fileContent;
     private String blobID;
+    /** The file in the working directory this blob was made from. */
+    private transient File file;
 
-    public Blob(byte[] fileContent) {
-        this.fileContent = fileContent;
-        blobID = sha1((Object) fileContent);
+    // Make a blob of the current contents of FILE. The file is hashed
+    // through a fixed-size buffer, so it is never held in memory whole,
+    // and only if the stat cache cannot vouch for its blob ID.
+    public Blob(File file) {
+        this.file = file;
+        blobID = StatCache.getStatCache().getBlobID(file);
     }
 
+    // Store the contents of the file, read again through a fixed-size
+    // buffer: small files inline, larger ones chunk by chunk.
     public void saveBlob() {
-        if (!Repository.BLOBS_DIR.exists()) {
-            Repository.BLOBS_DIR.mkdir();
+        if (Repository.BLOB_STORE.contains(blobID)) {
+            return;
+        }
+        MessageDigest digest = newSHA1();
+        Codec codec = codecFor(file.getName());
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(ENCODING_MAGIC);
+            out.writeByte(ENCODING_VERSION);
+            long size = channel.size();
+            if (size < INLINE_LIMIT) {
+                byte[] content = Channels.newInputStream(channel).readAllBytes();
+                digest.update(content);
+                Trace.count("bytes hashed", content.length);
+                out.writeByte(INLINE);
+                out.write(content);
+            } else {
+                List<String> chunkIDs = new ArrayList<>();
+                Chunker chunker = new Chunker(Channels.newInputStream(channel));
+                long total = 0;
+                for (byte[] chunk = chunker.next(); chunk != null; chunk = chunker.next()) {
+                    digest.update(chunk);
+                    Trace.count("bytes hashed", chunk.length);
+                    String chunkID = sha1((Object) chunk);
+                    Repository.CHUNK_STORE.write(chunkID, chunk, codec);
+                    chunkIDs.add(chunkID);
+                    total += chunk.length;
+                }
+                out.writeByte(CHUNKED);
+                out.writeLong(total);
+                out.writeInt(chunkIDs.size());
+                for (String chunkID : chunkIDs) {
+                    writeID(out, chunkID);
+                }
+            }
+            out.close();
+            if (!ObjectStore.fromRawID(digest.digest()).equals(blobID)) {
+                throw error("File %s changed while it was being added.", file.getName());
+            }
+            Repository.BLOB_STORE.write(blobID, bytes.toByteArray(), codec);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
-        File blobFile = join(Repository.BLOBS_DIR, blobID);
-        writeObject(blobFile, this);
+    }
+
+    // Return the codec to store the file FILENAME with: the default one,
+    // unless the file type is compressed already.
+    private static Codec codecFor(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        String extension = fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+        if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(extension)) {
+            return Codec.STORE;
+        }
+        return Codec.getDefault();
     }
 
     // Given a blob ID, find the content the blob stores.
     public static byte[] getBlobContent(String blobID) {
-        File blobFile = join(Repository.BLOBS_DIR, blobID);
-        return readObject(blobFile, Blob.class).getFileContent();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        writeBlobContent(blobID, Channels.newChannel(content));
+        return content.toByteArray();
+    }
+
+    // Given a blob ID, replace the contents of TARGETFILE with the content
+    // the blob stores.
+    public static void checkOutBlob(String blobID, File targetFile) {
+        checkOutBlob(blobID, readRecord(blobID), targetFile);
+    }
+
+    // Replace the contents of TARGETFILE with the content of the blob BLOBID,
+    // whose stored record is DATA.
+    private static void checkOutBlob(String blobID, byte[] data, File targetFile) {
+        File parent = targetFile.getParentFile();
+        if (parent != null && !parent.isDirectory()) {
+            parent.mkdirs();
+        }
+        try (FileChannel out = FileChannel.open(targetFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeBlobContent(blobID, data, out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // Write the blob of each file of FILES, which maps the files to blob
+    // IDs, into the file. With several files, they are written on a pool
+    // of threads, so checking out many files is bound by the bandwidth of
+    // the disk rather than by the time each write waits for; a fair
+    // semaphore keeps the contents being written at once to
+    // CHECKOUT_BUDGET bytes, counting a larger file as the whole budget.
+    public static void checkOutBlobs(Map<File, String> files) {
+        Trace.count("files checked out", files.size());
+        if (files.size() <= 1) {
+            for (Map.Entry<File, String> entry : files.entrySet()) {
+                checkOutBlob(entry.getValue(), entry.getKey());
+            }
+            return;
+        }
+        Semaphore budget = new Semaphore(CHECKOUT_BUDGET, true);
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(files.size(), CHECKOUT_THREADS));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Map.Entry<File, String> entry : files.entrySet()) {
+                futures.add(pool.submit(() -> {
+                    // The record is read once, for both the size and the
+                    // content.
+                    byte[] data = readRecord(entry.getValue());
+                    int size = (int) Math.min(Math.max(getContentSize(entry.getValue(), data), 1),
+                            CHECKOUT_BUDGET);
+                    budget.acquireUninterruptibly(size);
+                    try {
+                        checkOutBlob(entry.getValue(), data, entry.getKey());
+                    } finally {
+                        budget.release(size);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            throw error("Internal error checking out files: %s", excp.getCause());
+        } catch (InterruptedException excp) {
+            throw error("Interrupted while checking out files.");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Return the size of the content of the blob BLOBID, whose stored record
+    // is DATA. A serialized Blob is not read; its record is a little larger
+    // than its content, which is close enough for the budget.
+    private static long getContentSize(String blobID, byte[] data) {
+        if (isSerializedObject(data)) {
+            return data.length;
+        }
+        try {
+            DataInputStream in = openRecord(blobID, data);
+            if (in.readUnsignedByte() == INLINE) {
+                return data.length - INLINE_CONTENT_OFFSET;
+            }
+            return in.readLong();
+        } catch (IOException excp) {
+            throw error("Corrupt blob: %s", blobID);
+        }
+    }
+
+    // Given a blob ID, write the content the blob stores to OUT. The bytes
+    // go straight from the object files to OUT with FileChannel.transferTo,
+    // one chunk at a time, so memory use does not grow with the file.
+    public static void writeBlobContent(String blobID, WritableByteChannel out) {
+        writeBlobContent(blobID, readRecord(blobID), out);
+    }
+
+    private static void writeBlobContent(String blobID, byte[] data, WritableByteChannel out) {
+        try {
+            if (isSerializedObject(data)) {
+                writeFully(out, deserialize(data, Blob.class).getFileContent());
+                return;
+            }
+            DataInputStream in = openRecord(blobID, data);
+            if (in.readUnsignedByte() == INLINE) {
+                Repository.BLOB_STORE.transferTo(blobID, INLINE_CONTENT_OFFSET, out);
+                return;
+            }
+            in.readLong();
+            int chunkCount = in.readInt();
+            for (int i = 0; i < chunkCount; i += 1) {
+                String chunkID = readID(in);
+                if (!Repository.CHUNK_STORE.transferTo(chunkID, 0, out)) {
+                    throw error("Missing chunk %s of blob %s", chunkID, blobID);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // Return the stored record of the blob BLOBID.
+    private static byte[] readRecord(String blobID) {
+        byte[] data = CACHE.get(blobID);
+        if (data == null) {
+            data = Repository.BLOB_STORE.read(blobID);
+            if (data == null) {
+                throw error("Missing blob: %s", blobID);
+            }
+            CACHE.put(blobID, data, data.length);
+        }
+        return data;
+    }
+
+    public static ObjectCache<byte[]> getCache() {
+        return CACHE;
+    }
+
+    private static void writeFully(WritableByteChannel out, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    // Given the stored record DATA of a blob, return the IDs of the chunks
+    // it refers to, which is empty unless the blob is chunked.
+    public static List<String> getChunkIDs(String blobID, byte[] data) {
+        List<String> chunkIDs = new ArrayList<>();
+        if (isSerializedObject(data)) {
+            return chunkIDs;
+        }
+        try {
+            DataInputStream in = openRecord(blobID, data);
+            if (in.readUnsignedByte() == CHUNKED) {
+                in.readLong();
+                int chunkCount = in.readInt();
+                for (int i = 0; i < chunkCount; i += 1) {
+                    chunkIDs.add(readID(in));
+                }
+            }
+            return chunkIDs;
+        } catch (IOException excp) {
+            throw error("Corrupt blob: %s", blobID);
+        }
+    }
+
+    // Check the header of an encoded blob record and return a stream
+    // positioned at its kind.
+    private static DataInputStream openRecord(String blobID, byte[] data)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readUnsignedShort() != ENCODING_MAGIC
+                || in.readUnsignedByte() > ENCODING_VERSION) {
+            throw error("Unrecognized blob format: %s", blobID);
+        }
+        return in;
     }
 
     // Given a file name in the cwd, calculate its current blob ID.
     public static String getBlobID(String fileName) {
-        File file = join(Repository.CWD, fileName);
-        return sha1((Object) readContents(file));
+        return StatCache.getStatCache().getBlobID(join(Repository.CWD, fileName));
+    }
+
+    // Return the SHA-1 hash of the contents of FILE, which is the ID of a
+    // blob made from it, reading the file through a fixed-size buffer.
+    public static String hashFile(File file) {
+        MessageDigest digest = newSHA1();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                Trace.count("bytes hashed", buffer.remaining());
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return ObjectStore.fromRawID(digest.digest());
+    }
+
+    private static MessageDigest newSHA1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
     }
 
-    public byte[] getFileContent() {
+    byte[] getFileContent() {
         return fileContent;
     }
 
@@ -1,6 +1,10 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
@@ -10,21 +14,20 @@ public class Branch {
 
     public static void createBranch(String branchName, String currentCommitID) {
         File branchFile = join(Repository.HEADS_DIR, branchName);
-        if (branchFile.exists()) {
-            System.out.println("A branch with that name already exists.");
-            System.exit(0);
+        if (Journal.exists(branchFile)) {
+            throw error("A branch with that name already exists.");
         }
-        writeContents(branchFile, currentCommitID);
+        Journal.write(branchFile, currentCommitID);
     }
 
     // Update the current commit of the given branch to the given commit.
     public static void updateBranch(String branchName, String newCommitID) {
         File branchFile = join(Repository.HEADS_DIR, branchName);
-        writeContents(branchFile, newCommitID);
+        Journal.write(branchFile, newCommitID);
     }
 
     public static String getCurrentBranchName() {
-        return readContentsAsString(Repository.HEAD);
+        return Journal.readContentsAsString(Repository.HEAD);
     }
 
     public static String getCurrentCommitID() {
@@ -40,7 +43,7 @@ public class Branch {
     }
 
     public static String getBranchCurrentCommitID(String branchName) {
-        return readContentsAsString(getBranchFile(branchName));
+        return Journal.readContentsAsString(getBranchFile(branchName));
     }
 
     // Checkout all the files in the given branch.
@@ -64,168 +67,169 @@ public class Branch {
             }
         }
         if (!untrackedFiles.isEmpty()) {
-            System.out.println("`There is an untracked file in the way; "
+            throw error("`There is an untracked file in the way; "
                     + "delete it, or add and commit it first.");
-            System.exit(0);
         }
 
-        for (String fileName : currentFileMap.keySet()) {
-            if (!targetFileMap.containsKey(fileName)) {
-                restrictedDelete(fileName);
+        // Files that are the same in both commits are only written if the
+        // working copy differs; the trees tell which files changed without
+        // looking into unchanged directories.
+        // Files are deleted first, so a file can take the place of a
+        // directory that is gone; the rest are written all together.
+        Map<String, String[]> changes = Tree.diff(currentCommit.getTreeID(),
+                targetCommit.getTreeID());
+        Map<File, String> filesToWrite = new LinkedHashMap<>();
+        for (Map.Entry<String, String[]> change : changes.entrySet()) {
+            String blobID = change.getValue()[1];
+            if (blobID == null) {
+                Repository.deleteWorkingFile(change.getKey());
+            } else {
+                filesToWrite.put(join(Repository.CWD, change.getKey()), blobID);
             }
         }
-        for (String fileName : targetFileMap.keySet()) {
-            String blobID = targetFileMap.get(fileName);
-            byte[] blobContent = Blob.getBlobContent(blobID);
+        for (Map.Entry<String, String> entry : targetFileMap.entrySet()) {
+            String fileName = entry.getKey();
             File targetFile = join(Repository.CWD, fileName);
-            writeContents(targetFile, blobContent);
+            if (!changes.containsKey(fileName) && (!targetFile.isFile()
+                    || !entry.getValue().equals(Blob.getBlobID(fileName)))) {
+                filesToWrite.put(targetFile, entry.getValue());
+            }
+        }
+        try (Trace.Phase phase = Trace.phase("check out files")) {
+            Blob.checkOutBlobs(filesToWrite);
         }
 
         StagingArea stagingArea = StagingArea.getStagingArea();
         stagingArea.clear();
-        stagingArea.saveStagingArea();
     }
 
-    // Use BFS to find the split point when merging two branches.
+    // Find the split point of the current branch and the given commit,
+    // their latest common ancestor, using the commit graph.
     public static String findSplitPoint(String branchCommitID) {
-        Set<String> visitedFromCurrent = new HashSet<>();
-        Set<String> visitedFromTarget = new HashSet<>();
-        Queue<String> currentQueue = new LinkedList<>();
-        Queue<String> targetQueue = new LinkedList<>();
-
-        String currentCommitID = getCurrentCommitID();
-        currentQueue.add(currentCommitID);
-        targetQueue.add(branchCommitID);
-
-        while (!currentQueue.isEmpty() || !targetQueue.isEmpty()) {
-            String commitID = tryVisitNext(currentQueue,
-                    visitedFromCurrent, visitedFromTarget);
-            if (commitID != null) {
-                return commitID;
-            }
-
-            commitID = tryVisitNext(targetQueue,
-                    visitedFromTarget, visitedFromCurrent);
-            if (commitID != null) {
-                return commitID;
-            }
-        }
-
-        return null;
-    }
-
-    private static String tryVisitNext(Queue<String> queue,
-                                       Set<String> visitedSelf, Set<String> visitedOther) {
-        while (!queue.isEmpty()) {
-            String commitID = queue.poll();
-
-            if (!visitedSelf.add(commitID)) {
-                continue;
-            }
-            if (visitedOther.contains(commitID)) {
-                return commitID;
-            }
-
-            Commit commit = Commit.findCommit(commitID);
-            if (commit == null) {
-                continue;
-            }
-            if (commit.getParentCommitID() != null) {
-                queue.add(commit.getParentCommitID());
-            }
-            if (commit.getSecondParentCommitID() != null) {
-                queue.add(commit.getSecondParentCommitID());
-            }
-        }
-        return null;
+        return CommitGraph.getCommitGraph().findMergeBase(getCurrentCommitID(), branchCommitID);
     }
 
+    // Merge the given branch into the current one, from their split point.
+    //
+    // Only files that changed since the split point on either side are
+    // looked at: the trees of both sides are diffed against the split
+    // point's, which skips every directory that did not change, and the two
+    // sorted diffs are walked together. All actions are decided first, then
+    // applied to the working directory, and the stage is updated once.
     public static boolean mergeBranch(String branchName, String splitPointID)  {
-        boolean hasConflict = false;
         String branchCommitID = Branch.getBranchCurrentCommitID(branchName);
         String currentCommitID = Branch.getCurrentCommitID();
 
-        Commit splitCommit = Commit.findCommit(splitPointID);
-        Commit currentCommit = Commit.findCommit(currentCommitID);
-        Commit branchCommit = Commit.findCommit(branchCommitID);
-        Map<String, String> splitFiles = splitCommit.getFileNameToBlobID();
-        Map<String, String> currentFiles = currentCommit.getFileNameToBlobID();
-        Map<String, String> branchFiles = branchCommit.getFileNameToBlobID();
-        Set<String> allFiles = new HashSet<>();
-        allFiles.addAll(splitFiles.keySet());
-        allFiles.addAll(currentFiles.keySet());
-        allFiles.addAll(branchFiles.keySet());
-
-        for (String fileName : allFiles) {
-            String splitBlobID = splitFiles.getOrDefault(fileName, null);
-            String currentBlobID = currentFiles.getOrDefault(fileName, null);
-            String branchBlobID = branchFiles.getOrDefault(fileName, null);
-            if (Objects.equals(currentBlobID, branchBlobID)) {
+        String splitTreeID = Commit.findCommit(splitPointID).getTreeID();
+        String currentTreeID = Commit.findCommit(currentCommitID).getTreeID();
+        String branchTreeID = Commit.findCommit(branchCommitID).getTreeID();
+        Iterator<Map.Entry<String, String[]>> currentChanges =
+                Tree.diff(splitTreeID, currentTreeID).entrySet().iterator();
+        Iterator<Map.Entry<String, String[]>> branchChanges =
+                Tree.diff(splitTreeID, branchTreeID).entrySet().iterator();
+
+        Map<String, String> takeFromBranch = new TreeMap<>();
+        // Files to remove, with the blob IDs they have in the current commit.
+        Map<String, String> removeFiles = new TreeMap<>();
+        Map<String, String[]> conflicts = new TreeMap<>();
+        Map.Entry<String, String[]> current = next(currentChanges);
+        Map.Entry<String, String[]> branch = next(branchChanges);
+        while (branch != null) {
+            int cmp = current == null ? 1 : current.getKey().compareTo(branch.getKey());
+            if (cmp < 0) {
+                // Changed only in the current branch: keep it.
+                current = next(currentChanges);
                 continue;
             }
-
-            boolean inSplit = splitBlobID != null;
-            boolean inCurrent = currentBlobID != null;
-            boolean inGiven = branchBlobID != null;
-            boolean currentModified = !Objects.equals(splitBlobID, currentBlobID);
-            boolean branchModified = !Objects.equals(splitBlobID, branchBlobID);
-
-            if (!inSplit) { // if not present at the split point,
-                // only present at the current branch, do nothing.
-
-                if (inGiven && !inCurrent) {
-                    // only present at the given branch, checkout and stage.
-                    Repository.checkOutWithCommitIDAndFileName(branchCommitID, fileName);
-                    Repository.add(fileName);
-                } else if (inGiven && inCurrent
-                        && !Objects.equals(currentBlobID, branchBlobID)) {
-                    hasConflict = true;
-                    System.out.println("Encountered a merge conflict.");
-                    handleConflict(fileName, currentBlobID, branchBlobID);
+            String fileName = branch.getKey();
+            String branchBlobID = branch.getValue()[1];
+            if (cmp > 0) {
+                // Changed only in the given branch: take its version.
+                if (branchBlobID == null) {
+                    removeFiles.put(fileName, branch.getValue()[0]);
+                } else {
+                    takeFromBranch.put(fileName, branchBlobID);
                 }
-            } else { // if present at the split point,
-                // only deleted in the current branch, do nothing
-                // only modified in the current branch, do nothing
-
-                if (!inGiven && !currentModified) {
-                    // deleted in the given branch, not modified in the current branch, remove it
-                    Repository.remove(fileName);
-                } else if ((!inGiven && currentModified) || (!inCurrent && branchModified)) {
-                    hasConflict = true;
-                    System.out.println("Encountered a merge conflict.");
-                    handleConflict(fileName, currentBlobID, branchBlobID);
-                } else if (branchModified && !currentModified) {
-                    // modified in the given branch, not modified in the current branch,
-                    // checkout and stage it.
-                    Repository.checkOutWithCommitIDAndFileName(branchCommitID, fileName);
-                    Repository.add(fileName);
-                } else if (branchModified && currentModified
-                        && !Objects.equals(currentBlobID, branchBlobID)) {
-                    hasConflict = true;
-                    System.out.println("Encountered a merge conflict.");
-                    handleConflict(fileName, currentBlobID, branchBlobID);
+            } else {
+                // Changed in both, which is a conflict unless both made
+                // the same change.
+                String currentBlobID = current.getValue()[1];
+                if (!Objects.equals(currentBlobID, branchBlobID)) {
+                    conflicts.put(fileName, new String[] {
+                        current.getValue()[0], currentBlobID, branchBlobID});
                 }
+                current = next(currentChanges);
             }
+            branch = next(branchChanges);
+        }
+
+        // As rm does, only delete a working file that still holds the
+        // tracked contents; an edit that was never committed is kept.
+        for (Map.Entry<String, String> entry : removeFiles.entrySet()) {
+            File file = join(Repository.CWD, entry.getKey());
+            if (file.isFile() && entry.getValue().equals(Blob.getBlobID(entry.getKey()))) {
+                Repository.deleteWorkingFile(entry.getKey());
+            }
+        }
+        Map<File, String> filesToWrite = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : takeFromBranch.entrySet()) {
+            filesToWrite.put(join(Repository.CWD, entry.getKey()), entry.getValue());
+        }
+        try (Trace.Phase phase = Trace.phase("check out files")) {
+            Blob.checkOutBlobs(filesToWrite);
+        }
+        // Files changed on both sides are merged line by line; only lines
+        // both sides changed differently end up between conflict markers.
+        List<File> mergedFiles = new ArrayList<>();
+        boolean hasConflict = false;
+        for (Map.Entry<String, String[]> entry : conflicts.entrySet()) {
+            String[] blobIDs = entry.getValue();
+            hasConflict |= handleConflict(entry.getKey(), blobIDs[0], blobIDs[1], blobIDs[2]);
+            mergedFiles.add(join(Repository.CWD, entry.getKey()));
+        }
+
+        StagingArea stagingArea = StagingArea.getStagingArea();
+        stagingArea.stageFiles(takeFromBranch, new ArrayList<>(removeFiles.keySet()));
+        if (!mergedFiles.isEmpty()) {
+            stagingArea.addFiles(mergedFiles, currentCommitID);
+        }
+        if (hasConflict) {
+            System.out.println("Encountered a merge conflict.");
         }
         return hasConflict;
     }
 
-    private static void handleConflict(String fileName,
-                                       String currentBlobID, String branchBlobID) {
-        String currentContent = (currentBlobID != null)
-                ? new String(Blob.getBlobContent(currentBlobID), StandardCharsets.UTF_8)
-                : "";
-        String branchContent = (branchBlobID != null)
-                ? new String(Blob.getBlobContent(branchBlobID), StandardCharsets.UTF_8)
-                : "";
-
-        String conflictContent = "<<<<<<< HEAD\n"
-                + currentContent
-                + "=======\n"
-                + branchContent
-                + ">>>>>>>\n";
+    private static <T> T next(Iterator<T> iterator) {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    // Write the merge of the versions of FILENAME into the working file,
+    // and return true if they conflict. A file deleted on one side, or a
+    // binary file, conflicts as a whole.
+    private static boolean handleConflict(String fileName, String splitBlobID,
+                                          String currentBlobID, String branchBlobID) {
+        byte[] currentContent = (currentBlobID != null)
+                ? Blob.getBlobContent(currentBlobID) : new byte[0];
+        byte[] branchContent = (branchBlobID != null)
+                ? Blob.getBlobContent(branchBlobID) : new byte[0];
+        byte[] splitContent = (splitBlobID != null)
+                ? Blob.getBlobContent(splitBlobID) : new byte[0];
         File conflictFile = join(Repository.CWD, fileName);
-        writeContents(conflictFile, conflictContent);
-        Repository.add(fileName);
+        conflictFile.getParentFile().mkdirs();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(conflictFile))) {
+            if (currentBlobID != null && branchBlobID != null
+                    && !Diff.isBinary(currentContent) && !Diff.isBinary(branchContent)
+                    && !Diff.isBinary(splitContent)) {
+                return Diff.merge(splitContent, currentContent, branchContent, out);
+            }
+            out.write(Diff.CURRENT_MARKER.getBytes(StandardCharsets.UTF_8));
+            out.write(currentContent);
+            out.write(Diff.SEPARATOR_MARKER.getBytes(StandardCharsets.UTF_8));
+            out.write(branchContent);
+            out.write(Diff.END_MARKER.getBytes(StandardCharsets.UTF_8));
+            return true;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 }
@@ -0,0 +1,296 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/** For each commit, a Bloom filter of the paths it changed from its first
+ *  parent, so log -- PATH can pass over the commits that did not touch
+ *  PATH without reading them.
+ *
+ *  .gitlet/commit-graph-bloom, next to the commit graph, is a header
+ *  followed by one record per commit: its raw ID, the number of longs in
+ *  its filter and the filter. A filter holds each changed file and each
+ *  directory above it, with BITS_PER_PATH bits per path, and says "maybe"
+ *  for a path that was changed and, now and then, for one that was not;
+ *  "no" is always right. A commit changing more than MAX_PATHS paths gets
+ *  an empty filter that says "maybe" to everything.
+ *
+ *  commit records the filter of each new commit from the paths it staged,
+ *  appended to the file at the end of the command without reading it.
+ *  Commits without a filter, such as those copied by fetch, get one the
+ *  first time log -- PATH reaches them.
+ */
+public class ChangedPaths {
+
+    /** The file the filters are saved in. */
+    private static final String FILTER_FILE_NAME = "commit-graph-bloom";
+    /** Magic number at the start of the filter file. */
+    private static final int FILTER_MAGIC = 0x47424C4D; // "GBLM"
+    /** Version of the filter format written by this class. */
+    private static final int FORMAT_VERSION = 1;
+    /** Bits set aside for each path, and bits set by each path. With these,
+     *  about one path in a hundred that was not changed is a "maybe". */
+    private static final int BITS_PER_PATH = 10;
+    private static final int HASHES = 7;
+    /** The most paths a filter holds. */
+    private static final int MAX_PATHS = 512;
+
+    /** The filters of the current command, loaded on first use. */
+    private static ChangedPaths changedPaths;
+    /** Filters of commits made during the current command, to be appended
+     *  to the filter file without loading it. */
+    private static final Map<String, long[]> pending = new HashMap<>();
+
+    /** The filters by commit ID. */
+    private final Map<String, long[]> filters = new HashMap<>();
+    /** Filters not in the filter file yet. */
+    private final Map<String, long[]> added = new HashMap<>();
+    /** True if the filter file is unreadable and must be written anew. */
+    private boolean rewrite;
+
+    private ChangedPaths() {
+        File filterFile = filterFile();
+        if (!filterFile.isFile()) {
+            rewrite = true;
+            return;
+        }
+        byte[] contents;
+        try (Locks.Held lock = Locks.hold(Repository.GITLET_DIR, Locks.CACHES, false)) {
+            contents = readContents(filterFile);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+        try {
+            if (in.readInt() != FILTER_MAGIC || in.readUnsignedByte() > FORMAT_VERSION) {
+                rewrite = true;
+                return;
+            }
+            while (in.available() > 0) {
+                String commitID = readID(in);
+                long[] filter = new long[in.readInt()];
+                for (int i = 0; i < filter.length; i += 1) {
+                    filter[i] = in.readLong();
+                }
+                filters.put(commitID, filter);
+            }
+        } catch (IOException excp) {
+            // A record cut short by an interrupted command; keep the
+            // complete ones and write the file again.
+            rewrite = true;
+        }
+    }
+
+    public static ChangedPaths getChangedPaths() {
+        if (changedPaths == null) {
+            saveIfChanged();
+            changedPaths = new ChangedPaths();
+        }
+        return changedPaths;
+    }
+
+    private static File filterFile() {
+        return join(Repository.GITLET_DIR, FILTER_FILE_NAME);
+    }
+
+    // Record the paths a commit just made changed from its first parent.
+    // The filter file is not read; the new filter is appended to it at the
+    // end of the command.
+    public static void addCommit(String commitID, Collection<String> paths) {
+        long[] filter = build(paths);
+        if (changedPaths != null) {
+            changedPaths.filters.put(commitID, filter);
+            changedPaths.added.put(commitID, filter);
+        } else {
+            pending.put(commitID, filter);
+        }
+    }
+
+    // Save the filters added during the current command.
+    public static void saveIfChanged() {
+        if (!Repository.GITLET_DIR.isDirectory()) {
+            return;
+        }
+        if (changedPaths != null) {
+            if (changedPaths.rewrite || !changedPaths.added.isEmpty()) {
+                try (Locks.Held lock = Locks.hold(Repository.GITLET_DIR, Locks.CACHES, true)) {
+                    changedPaths.save();
+                }
+            }
+        } else if (!pending.isEmpty()) {
+            try (Locks.Held lock = Locks.hold(Repository.GITLET_DIR, Locks.CACHES, true)) {
+                append(pending);
+            }
+            pending.clear();
+        }
+    }
+
+    // Forget the filters and the commits of the current command, so the
+    // next command run in this process reads the filter file again.
+    public static void reset() {
+        changedPaths = null;
+        pending.clear();
+    }
+
+    /** Returns true if the commit COMMITID changed PATH, a file or a
+     *  directory, from its first parent PARENTID, which is null for the
+     *  initial commit. The commits are only read if the filter of COMMITID
+     *  says PATH may have changed, or if it has no filter yet. */
+    public boolean changed(String commitID, String parentID, String path) {
+        long[] filter = filters.get(commitID);
+        if (filter != null && !mayContain(filter, path)) {
+            Trace.count("commits skipped by path filters", 1);
+            return false;
+        }
+        String parentTreeID = parentID == null ? null : Commit.findCommit(parentID).getTreeID();
+        Set<String> paths = Tree.diff(parentTreeID,
+                Commit.findCommit(commitID).getTreeID()).keySet();
+        if (filter == null) {
+            filter = build(paths);
+            filters.put(commitID, filter);
+            added.put(commitID, filter);
+        } else {
+            Trace.count("commits read for path filter maybes", 1);
+        }
+        for (String changedPath : paths) {
+            if (changedPath.equals(path) || changedPath.startsWith(path + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the filter of PATHS and of the directories above them. */
+    private static long[] build(Collection<String> paths) {
+        Set<String> keys = new LinkedHashSet<>();
+        for (String path : paths) {
+            keys.add(path);
+            for (int slash = path.lastIndexOf('/'); slash > 0;
+                 slash = path.lastIndexOf('/', slash - 1)) {
+                keys.add(path.substring(0, slash));
+            }
+        }
+        if (keys.size() > MAX_PATHS) {
+            return new long[0];
+        }
+        long[] filter = new long[Math.max(1, (keys.size() * BITS_PER_PATH + 63) / 64)];
+        for (String key : keys) {
+            long hash = hash(key);
+            for (int i = 0; i < HASHES; i += 1) {
+                int bit = bit(hash, i, filter.length * 64);
+                filter[bit >>> 6] |= 1L << bit;
+            }
+        }
+        return filter;
+    }
+
+    private static boolean mayContain(long[] filter, String path) {
+        if (filter.length == 0) {
+            return true;
+        }
+        long hash = hash(path);
+        for (int i = 0; i < HASHES; i += 1) {
+            int bit = bit(hash, i, filter.length * 64);
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The Ith bit of NUMBITS for a path with HASH, by double hashing
+     *  with the two halves of HASH. */
+    private static int bit(long hash, int i, int numBits) {
+        int first = (int) hash;
+        int second = (int) (hash >>> 32) | 1;
+        return Math.floorMod(first + i * second, numBits);
+    }
+
+    /** A 64-bit FNV-1a hash of the UTF-8 bytes of PATH, mixed so both
+     *  halves depend on every byte. It must not change between versions,
+     *  as the filters are saved. */
+    private static long hash(String path) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /** Appends the filters added since the file was loaded, or writes all
+     *  of them if it could not be read. */
+    private void save() {
+        if (rewrite) {
+            File temp = join(Repository.GITLET_DIR, FILTER_FILE_NAME + ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(temp)))) {
+                    out.writeInt(FILTER_MAGIC);
+                    out.writeByte(FORMAT_VERSION);
+                    writeRecords(out, filters);
+                }
+                Files.move(temp.toPath(), filterFile().toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        } else {
+            append(added);
+        }
+        added.clear();
+        rewrite = false;
+    }
+
+    /** Appends the records of RECORDS to the filter file, starting it if
+     *  there is none. They go out in a single write, so an interrupted
+     *  append leaves at most one partial record at the end. */
+    private static void append(Map<String, long[]> records) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            if (!filterFile().isFile()) {
+                out.writeInt(FILTER_MAGIC);
+                out.writeByte(FORMAT_VERSION);
+            }
+            writeRecords(out, records);
+            try (FileOutputStream file = new FileOutputStream(filterFile(), true)) {
+                file.write(bytes.toByteArray());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static void writeRecords(DataOutputStream out, Map<String, long[]> records)
+            throws IOException {
+        List<String> commitIDs = new ArrayList<>(records.keySet());
+        commitIDs.sort(null);
+        for (String commitID : commitIDs) {
+            long[] filter = records.get(commitID);
+            writeID(out, commitID);
+            out.writeInt(filter.length);
+            for (long word : filter) {
+                out.writeLong(word);
+            }
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,98 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Splits a stream of bytes into content-defined chunks.
+ *
+ *  A rolling "gear" hash is updated with every byte, and a chunk ends where
+ *  chosen bits of the hash are all zero. Because the cut points depend only
+ *  on the nearby content, inserting or changing a few bytes of a large file
+ *  only changes the chunks around the edit; every other chunk, and so its
+ *  ID, stays the same and is stored once.
+ */
+public class Chunker {
+
+    /** No chunk, except the last, is shorter than this. */
+    static final int MIN_CHUNK_SIZE = 2 * 1024;
+    /** No chunk is longer than this. */
+    static final int MAX_CHUNK_SIZE = 64 * 1024;
+    /** A cut happens where the hash has these bits clear, which on average
+     *  gives chunks of 8 KiB past the minimum size. The high bits are used
+     *  because they depend on the last 64 bytes, the low bits on only a few. */
+    private static final long CUT_MASK = ((1L << 13) - 1) << 51;
+    /** A random value for every byte, fixed so that every repository cuts
+     *  the same content at the same places. */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x67697466L);
+        for (int i = 0; i < GEAR.length; i += 1) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /** The stream being chunked. */
+    private final InputStream in;
+    /** Bytes read from IN but not yet returned as part of a chunk. */
+    private final byte[] buffer = new byte[2 * MAX_CHUNK_SIZE];
+    /** The range of valid bytes in BUFFER. */
+    private int start;
+    private int end;
+    /** True once IN has been read to the end. */
+    private boolean eof;
+
+    public Chunker(InputStream in) {
+        this.in = in;
+    }
+
+    /** Returns the next chunk of the stream, or null at its end. */
+    public byte[] next() throws IOException {
+        fill();
+        if (start == end) {
+            return null;
+        }
+        int length = cutPoint(buffer, start, end);
+        byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+        start += length;
+        return chunk;
+    }
+
+    /** Reads from IN until at least MAX_CHUNK_SIZE bytes are buffered or
+     *  the stream ends. */
+    private void fill() throws IOException {
+        if (end - start >= MAX_CHUNK_SIZE || eof) {
+            return;
+        }
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+        while (end < buffer.length && !eof) {
+            int n = in.read(buffer, end, buffer.length - end);
+            if (n < 0) {
+                eof = true;
+            } else {
+                end += n;
+            }
+        }
+    }
+
+    /** Returns the length of the chunk starting at FROM in DATA, whose
+     *  valid bytes end at TO. */
+    static int cutPoint(byte[] data, int from, int to) {
+        int limit = Math.min(to - from, MAX_CHUNK_SIZE);
+        if (limit <= MIN_CHUNK_SIZE) {
+            return limit;
+        }
+        long hash = 0;
+        for (int i = MIN_CHUNK_SIZE; i < limit; i += 1) {
+            hash = (hash << 1) + GEAR[data[from + i] & 0xff];
+            if ((hash & CUT_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+}
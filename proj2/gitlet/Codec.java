@@ -0,0 +1,258 @@
+package gitlet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** A way of encoding the bytes of the objects in an object store.
+ *
+ *  Every object an ObjectStore writes starts with a header: a magic
+ *  number, the header version, the ID of the codec that encoded the rest,
+ *  and the length of the object before encoding. Objects written before
+ *  there was a header are stored as they are; they are recognized by not
+ *  starting with a valid header, one whose payload decodes to exactly the
+ *  length it gives.
+ *
+ *  Objects are compressed with Deflater unless GITLET_CODEC names another
+ *  codec. An object that does not get noticeably smaller, like a chunk of
+ *  a file that is already compressed, is stored as it is instead, so it
+ *  can still be streamed straight from disk. Object IDs are always the
+ *  hashes of the bytes before encoding, so two repositories with different
+ *  codecs still agree on them.
+ *
+ *  New codecs are added with register, under an ID no other codec uses.
+ */
+public abstract class Codec {
+
+    /** Magic number at the start of an encoded object. */
+    private static final int HEADER_MAGIC = 0x474F424A; // "GOBJ"
+    /** Version of the header written by this class. */
+    private static final int HEADER_VERSION = 1;
+    /** Size of the header: magic, version, codec ID, decoded length. */
+    static final int HEADER_SIZE = 4 + 1 + 1 + 4;
+    /** The most an encoded payload may grow when decoded. Deflate cannot
+     *  grow data by much more than 1032 to 1; a header claiming more is
+     *  taken for the start of an object written without one, and nothing
+     *  of its claimed size is allocated. */
+    private static final long MAX_EXPANSION = 1032;
+
+    /** The registered codecs, by ID and by name. */
+    private static final Map<Integer, Codec> BY_ID = new TreeMap<>();
+    private static final Map<String, Codec> BY_NAME = new TreeMap<>();
+
+    /** Stores objects as they are. */
+    public static final Codec STORE = register(new Store());
+    /** Compresses objects with Deflater at its default level. */
+    public static final Codec DEFLATE = register(new Deflate("deflate", Deflater.DEFAULT_COMPRESSION));
+
+    /** The codec new objects are written with. */
+    private static Codec defaultCodec;
+
+    /** The ID of this codec in object headers. */
+    private final int id;
+    /** The name of this codec in GITLET_CODEC. */
+    private final String name;
+
+    protected Codec(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    public int getID() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Returns DATA encoded. */
+    protected abstract byte[] encode(byte[] data);
+
+    /** Returns the LENGTH bytes of DATA at OFFSET decoded, or null if they
+     *  do not decode to exactly DECODEDLENGTH bytes. */
+    protected abstract byte[] decode(byte[] data, int offset, int length, int decodedLength);
+
+    /** Makes CODEC available to read and write objects, and returns it. */
+    public static synchronized Codec register(Codec codec) {
+        if (BY_ID.containsKey(codec.id) || codec.id < 0 || codec.id > 0xFF) {
+            throw new IllegalArgumentException("Codec ID " + codec.id + " is taken.");
+        }
+        BY_ID.put(codec.id, codec);
+        BY_NAME.put(codec.name, codec);
+        return codec;
+    }
+
+    /** Returns the codec called NAME, or null if there is none. */
+    public static synchronized Codec forName(String name) {
+        return BY_NAME.get(name);
+    }
+
+    private static synchronized Codec forID(int id) {
+        return BY_ID.get(id);
+    }
+
+    /** Returns the codec new objects are written with: the one named by
+     *  GITLET_CODEC, or DEFLATE. */
+    public static synchronized Codec getDefault() {
+        if (defaultCodec == null) {
+            String name = System.getenv("GITLET_CODEC");
+            defaultCodec = name == null ? null : forName(name);
+            if (defaultCodec == null) {
+                defaultCodec = DEFLATE;
+            }
+        }
+        return defaultCodec;
+    }
+
+    /** Returns DATA encoded with CODEC, after a header. DATA is stored as
+     *  it is if CODEC does not save at least a sixteenth of its size. */
+    public static byte[] encodeObject(byte[] data, Codec codec) {
+        byte[] payload = data;
+        if (codec != STORE) {
+            byte[] encoded = codec.encode(data);
+            if (encoded.length < data.length - data.length / 16) {
+                payload = encoded;
+            } else {
+                codec = STORE;
+            }
+        }
+        ByteBuffer object = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        object.putInt(HEADER_MAGIC).put((byte) HEADER_VERSION).put((byte) codec.id)
+                .putInt(data.length).put(payload);
+        return object.array();
+    }
+
+    /** Returns the bytes of the object stored as STORED. */
+    public static byte[] decodeObject(byte[] stored) {
+        int rawOffset = rawOffset(stored, stored.length);
+        if (rawOffset == 0) {
+            return stored;
+        } else if (rawOffset > 0) {
+            return Arrays.copyOfRange(stored, rawOffset, stored.length);
+        }
+        Codec codec = forID(stored[5] & 0xFF);
+        int decodedLength = ByteBuffer.wrap(stored, 6, 4).getInt();
+        byte[] decoded = codec.decode(stored, HEADER_SIZE, stored.length - HEADER_SIZE,
+                decodedLength);
+        // A payload that does not decode belongs to an object written
+        // without a header that happens to start like one.
+        return decoded == null ? stored : decoded;
+    }
+
+    /** Returns where the object stored as LENGTH bytes, which start with
+     *  HEAD, begins in them if it is stored as it is: 0 for an object
+     *  without a header, HEADER_SIZE for one stored by STORE. Returns -1 if
+     *  the object is encoded and has to be decoded. HEAD holds at least
+     *  the first HEADER_SIZE bytes, or all of them if there are fewer. */
+    static int rawOffset(byte[] head, long length) {
+        if (length < HEADER_SIZE || head.length < HEADER_SIZE) {
+            return 0;
+        }
+        ByteBuffer header = ByteBuffer.wrap(head, 0, HEADER_SIZE);
+        if (header.getInt() != HEADER_MAGIC || header.get() != HEADER_VERSION) {
+            return 0;
+        }
+        Codec codec = forID(header.get() & 0xFF);
+        int decodedLength = header.getInt();
+        if (codec == null || decodedLength < 0
+                || decodedLength > (length - HEADER_SIZE) * MAX_EXPANSION) {
+            return 0;
+        }
+        if (codec == STORE) {
+            return decodedLength == length - HEADER_SIZE ? HEADER_SIZE : 0;
+        }
+        return -1;
+    }
+
+    /** The codec that leaves objects as they are. */
+    private static class Store extends Codec {
+        Store() {
+            super(0, "store");
+        }
+
+        @Override
+        protected byte[] encode(byte[] data) {
+            return data;
+        }
+
+        @Override
+        protected byte[] decode(byte[] data, int offset, int length, int decodedLength) {
+            return length == decodedLength ? Arrays.copyOfRange(data, offset, offset + length)
+                                           : null;
+        }
+    }
+
+    /** Compression with java.util.zip at a given level. Every level reads
+     *  the same format, so one ID serves them all. */
+    static class Deflate extends Codec {
+        /** Deflaters and inflaters are costly to make; each thread keeps
+         *  its own. */
+        private static final ThreadLocal<Inflater> INFLATER =
+                ThreadLocal.withInitial(Inflater::new);
+        private final ThreadLocal<Deflater> deflater;
+
+        Deflate(String name, int level) {
+            super(1, name);
+            deflater = ThreadLocal.withInitial(() -> new Deflater(level));
+        }
+
+        /** Returns a Deflate codec at LEVEL for encoding only, since it is
+         *  not registered; used to compare levels. */
+        static Deflate atLevel(int level) {
+            return new Deflate("deflate-" + level, level);
+        }
+
+        @Override
+        protected byte[] encode(byte[] data) {
+            Deflater compressor = deflater.get();
+            compressor.reset();
+            compressor.setInput(data);
+            compressor.finish();
+            byte[] buffer = new byte[Math.max(64, data.length / 2)];
+            int length = 0;
+            while (!compressor.finished()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                length += compressor.deflate(buffer, length, buffer.length - length);
+            }
+            return Arrays.copyOf(buffer, length);
+        }
+
+        @Override
+        protected byte[] decode(byte[] data, int offset, int length, int decodedLength) {
+            Inflater inflater = INFLATER.get();
+            inflater.reset();
+            inflater.setInput(data, offset, length);
+            byte[] result = new byte[decodedLength];
+            try {
+                int n = 0;
+                while (n < decodedLength && !inflater.finished()) {
+                    int got = inflater.inflate(result, n, decodedLength - n);
+                    if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        return null;
+                    }
+                    n += got;
+                }
+                // Finish the stream, so input left over is noticed.
+                if (!inflater.finished()) {
+                    byte[] extra = new byte[1];
+                    if (inflater.inflate(extra) > 0 || !inflater.finished()) {
+                        return null;
+                    }
+                }
+                if (n != decodedLength || inflater.getRemaining() != 0) {
+                    return null;
+                }
+                return result;
+            } catch (DataFormatException excp) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+/** Compares the object codecs for throughput against compression ratio.
+ *  The files under DIR, or a synthetic mix of text and random bytes if no
+ *  DIR is given, are cut into chunks as large files are when they are
+ *  added, and each chunk is encoded and decoded as a stored object.
+ *  Usage: java gitlet.CodecSpeedTest [DIR] [MEGABYTES]
+ */
+public class CodecSpeedTest {
+
+    public static void main(String[] args) throws IOException {
+        long limit = (args.length > 1 ? Long.parseLong(args[1]) : 64) << 20;
+        List<byte[]> objects = args.length > 0 ? readFiles(Paths.get(args[0]), limit)
+                                               : synthetic(limit);
+        long totalBytes = 0;
+        for (byte[] object : objects) {
+            totalBytes += object.length;
+        }
+        System.out.printf("%d objects, %.1f MB%n", objects.size(), totalBytes / 1e6);
+        System.out.printf("%-12s %8s %14s %14s%n", "codec", "ratio", "encode MB/s", "decode MB/s");
+
+        Codec[] codecs = {
+            Codec.STORE, Codec.Deflate.atLevel(Deflater.BEST_SPEED), Codec.DEFLATE,
+            Codec.Deflate.atLevel(Deflater.BEST_COMPRESSION)
+        };
+        for (Codec codec : codecs) {
+            // Run each codec once before timing it, so that all are measured
+            // with the JIT warmed up.
+            for (int round = 0; round < 2; round += 1) {
+                List<byte[]> encoded = new ArrayList<>(objects.size());
+                long storedBytes = 0;
+                long start = System.nanoTime();
+                for (byte[] object : objects) {
+                    byte[] stored = Codec.encodeObject(object, codec);
+                    storedBytes += stored.length;
+                    encoded.add(stored);
+                }
+                double encodeSeconds = (System.nanoTime() - start) / 1e9;
+                start = System.nanoTime();
+                for (byte[] stored : encoded) {
+                    Codec.decodeObject(stored);
+                }
+                double decodeSeconds = (System.nanoTime() - start) / 1e9;
+                if (round == 1) {
+                    System.out.printf("%-12s %8.2f %14.1f %14.1f%n", codec.getName(),
+                            (double) totalBytes / storedBytes,
+                            totalBytes / encodeSeconds / 1e6, totalBytes / decodeSeconds / 1e6);
+                }
+            }
+        }
+    }
+
+    /** Returns the chunks of the files under DIR, up to LIMIT bytes. */
+    private static List<byte[]> readFiles(Path dir, long limit) throws IOException {
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        List<byte[]> objects = new ArrayList<>();
+        long total = 0;
+        for (Path file : files) {
+            if (total >= limit) {
+                break;
+            }
+            byte[] content = Files.readAllBytes(file);
+            total += content.length;
+            addChunks(content, objects);
+        }
+        return objects;
+    }
+
+    /** Returns the chunks of LIMIT bytes, three quarters source-like text
+     *  and the rest random bytes, which do not compress. */
+    private static List<byte[]> synthetic(long limit) throws IOException {
+        Random random = new Random(42);
+        String[] words = {"public", "static", "void", "return", "int", "String", "final",
+                          "if", "for", "new", "null", "this", "file", "commit", "blob", "tree"};
+        List<byte[]> objects = new ArrayList<>();
+        long total = 0;
+        for (int i = 0; total < limit; i += 1) {
+            byte[] content;
+            if (i % 4 == 3) {
+                content = new byte[256 * 1024];
+                random.nextBytes(content);
+            } else {
+                StringBuilder text = new StringBuilder();
+                while (text.length() < 256 * 1024) {
+                    text.append("    ".repeat(random.nextInt(4)));
+                    for (int w = random.nextInt(8); w >= 0; w -= 1) {
+                        text.append(words[random.nextInt(words.length)]).append(' ');
+                    }
+                    text.append(random.nextInt(1000)).append(";\n");
+                }
+                content = text.toString().getBytes(StandardCharsets.UTF_8);
+            }
+            total += content.length;
+            addChunks(content, objects);
+        }
+        return objects;
+    }
+
+    private static void addChunks(byte[] content, List<byte[]> objects) throws IOException {
+        if (content.length < Blob.INLINE_LIMIT) {
+            objects.add(content);
+            return;
+        }
+        Chunker chunker = new Chunker(new ByteArrayInputStream(content));
+        for (byte[] chunk = chunker.next(); chunk != null; chunk = chunker.next()) {
+            objects.add(chunk);
+        }
+    }
+}
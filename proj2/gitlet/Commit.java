@@ -1,6 +1,11 @@
 package gitlet;
 
-import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serial;
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -8,6 +13,13 @@ import java.util.*;
 import static gitlet.Utils.*;
 
 /** Represents a gitlet commit object.
+ *
+ *  Commits are stored in a compact binary encoding (see encode), and the
+ *  commit ID is the SHA-1 hash of that encoding. The files of a commit are
+ *  not in the commit itself but in its tree (see Tree), which it shares
+ *  with other commits wherever their directories are the same. Commits
+ *  written by older versions of gitlet, with their own file table or as
+ *  serialized Java objects, can still be read.
  *
  *  @author George Yuan
  */
@@ -18,6 +30,20 @@ public class Commit implements Serializable {
      * variable is used. We've provided one example for `message`.
      */
 
+    /** Kept equal to the implicit value of the original serialized class,
+     *  so commits written with Java serialization remain readable. */
+    @Serial
+    private static final long serialVersionUID = -885728333956210104L;
+    /** The first two bytes of an encoded commit. */
+    private static final int ENCODING_MAGIC = 0x4743; // "GC"
+    /** The version of the encoding written by encode. Version 1 stored the
+     *  file table in the commit instead of a tree ID. */
+    private static final int ENCODING_VERSION = 2;
+    private static final int FILE_TABLE_VERSION = 1;
+    /** Flag bits recording which parents an encoded commit has. */
+    private static final int HAS_PARENT = 1;
+    private static final int HAS_SECOND_PARENT = 2;
+
     /** The commit time. */
     private Date timeStamp;
     /** The parent commit's ID. */
@@ -26,21 +52,27 @@ public class Commit implements Serializable {
     private String secondParentCommitID;
      /** The message of this commit. */
     private String message;
-    /** The commit files and their blob IDs. */
+    /** The commit files and their blob IDs. Read from the tree when first
+     *  needed, except in commits from older versions that stored it. */
     private Map<String, String> fileNameToBlobID;
+    /** The ID of the tree holding the files of this commit. */
+    private String treeID;
     /** The commit ID. */
     private String commitID;
     /** The standard length of a commit ID. */
     public static final int STANDARD_COMMIT_ID_LENGTH = 40;
     /** The initial commit ID. */
     private static String initialCommitID;
+    /** Commits already read during this command. */
+    private static final ObjectCache<Commit> CACHE = new ObjectCache<>("commit", 32L << 20);
 
     public Commit() {
         timeStamp = new Date(0);
         parentCommitID = null;
         message = "initial commit";
-        fileNameToBlobID = new HashMap<>();
-        commitID = sha1((Object) serialize(this));
+        fileNameToBlobID = new TreeMap<>();
+        treeID = Tree.hash(fileNameToBlobID);
+        commitID = sha1((Object) encode());
         initialCommitID = commitID;
     }
 
@@ -50,57 +82,133 @@ public class Commit implements Serializable {
         this.parentCommitID = parentCommitID;
         this.message = message;
         this.fileNameToBlobID = fileNameToBlobID;
-        commitID = sha1((Object) serialize(this));
+        treeID = Tree.hash(fileNameToBlobID);
+        commitID = sha1((Object) encode());
     }
 
-    // Only used when two branches merge together.
+    // Make a commit of the stored tree TREEID. SECONDPARENTCOMMITID is only
+    // given when two branches merge together.
     private Commit(String message, String parentCommitID, String secondParentCommitID,
-                   Map<String, String> fileNameToBlobID) {
+                   String treeID) {
         timeStamp = new Date();
         this.parentCommitID = parentCommitID;
         this.secondParentCommitID = secondParentCommitID;
         this.message = message;
-        this.fileNameToBlobID = fileNameToBlobID;
-        commitID = sha1((Object) serialize(this));
+        this.treeID = treeID;
+        commitID = sha1((Object) encode());
+    }
+
+    // Only used when decoding a stored commit.
+    private Commit(String commitID) {
+        this.commitID = commitID;
     }
 
     public void saveCommit() {
-        if (!Repository.COMMITS_DIR.exists()) {
-            Repository.COMMITS_DIR.mkdir();
+        if (fileNameToBlobID != null && !Repository.TREE_STORE.contains(treeID)) {
+            Tree.write(fileNameToBlobID);
+        }
+        Repository.COMMIT_STORE.write(commitID, encode());
+    }
+
+    /** Returns the binary encoding of this commit: a magic number and
+     *  version, the time stamp, the parents as raw 20-byte IDs, the
+     *  length-prefixed message, and the raw tree ID. */
+    public byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(96 + message.length());
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(ENCODING_MAGIC);
+            out.writeByte(ENCODING_VERSION);
+            out.writeLong(timeStamp.getTime());
+            int flags = (parentCommitID != null ? HAS_PARENT : 0)
+                    | (secondParentCommitID != null ? HAS_SECOND_PARENT : 0);
+            out.writeByte(flags);
+            if (parentCommitID != null) {
+                writeID(out, parentCommitID);
+            }
+            if (secondParentCommitID != null) {
+                writeID(out, secondParentCommitID);
+            }
+            writeString(out, message);
+            writeID(out, getTreeID());
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw error("Internal error encoding commit.");
+        }
+    }
+
+    /** Returns the commit with ID COMMITID stored as DATA, which is either
+     *  produced by encode, by an older version of it, or a serialized
+     *  Commit. */
+    public static Commit decode(String commitID, byte[] data) {
+        if (isSerializedObject(data)) {
+            return deserialize(data, Commit.class);
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            int version = 0;
+            if (in.readUnsignedShort() != ENCODING_MAGIC
+                    || (version = in.readUnsignedByte()) > ENCODING_VERSION) {
+                throw error("Unrecognized commit format: %s", commitID);
+            }
+            Commit commit = new Commit(commitID);
+            commit.timeStamp = new Date(in.readLong());
+            int flags = in.readUnsignedByte();
+            if ((flags & HAS_PARENT) != 0) {
+                commit.parentCommitID = readID(in);
+            }
+            if ((flags & HAS_SECOND_PARENT) != 0) {
+                commit.secondParentCommitID = readID(in);
+            }
+            commit.message = readString(in);
+            if (version == FILE_TABLE_VERSION) {
+                int fileCount = in.readInt();
+                commit.fileNameToBlobID = new TreeMap<>();
+                for (int i = 0; i < fileCount; i += 1) {
+                    String fileName = readString(in);
+                    commit.fileNameToBlobID.put(fileName, readID(in));
+                }
+            } else {
+                commit.treeID = readID(in);
+            }
+            return commit;
+        } catch (IOException excp) {
+            throw error("Corrupt commit: %s", commitID);
         }
-        File commitFile = join(Repository.COMMITS_DIR, commitID);
-        writeObject(commitFile, this);
     }
 
     public static Commit findCommit(String commitID) {
         if (commitID == null) {
             return null;
         }
-        File targetCommit = join(Repository.COMMITS_DIR, commitID);
-        if (!targetCommit.exists()) {
+        Commit commit = CACHE.get(commitID);
+        if (commit != null) {
+            return commit;
+        }
+        byte[] data = Repository.COMMIT_STORE.read(commitID);
+        if (data == null) {
             return null;
         }
-        return readObject(targetCommit, Commit.class);
+        commit = decode(commitID, data);
+        // A decoded commit takes roughly three times its encoded size.
+        CACHE.put(commitID, commit, 3L * data.length);
+        return commit;
     }
 
+    // Find the commit whose ID starts with SHORTCOMMITID, or return null if
+    // there is none or more than one.
     public static Commit findCommitWithShortID(String shortCommitID) {
-        List<String> matches = new ArrayList<>();
-        for (String commitID : plainFilenamesIn(Repository.COMMITS_DIR)) {
-            if (commitID.startsWith(shortCommitID)) {
-                matches.add(commitID);
-            }
-        }
+        List<String> matches = Repository.COMMIT_STORE.idsWithPrefix(shortCommitID);
         return (matches.size() == 1) ? findCommit(matches.get(0)) : null;
     }
 
+    // Make a commit of the stored tree TREEID. MERGEDCOMMITID is null
+    // unless two branches merge together.
     public static Commit createMergeCommit(String message,
                                            String parentCommitID, String mergedCommitID,
-                                           Map<String, String> fileNameToBlobID) {
-        if (mergedCommitID == null) {
-            return new Commit(message, parentCommitID, fileNameToBlobID);
-        } else {
-            return new Commit(message, parentCommitID, mergedCommitID, fileNameToBlobID);
-        }
+                                           String treeID) {
+        return new Commit(message, parentCommitID, mergedCommitID, treeID);
     }
 
     // Any files are added, deleted or modified but not staged.
@@ -109,12 +217,12 @@ public class Commit implements Serializable {
         StagingArea stagingArea = StagingArea.getStagingArea();
         Map<String, String> stageForAddition = stagingArea.getStageForAddition();
         List<String> stageForRemoval = stagingArea.getStageForRemoval();
-        List<String> cwd = plainFilenamesIn(Repository.CWD);
 
+        Map<String, String> fileNameToBlobID = getFileNameToBlobID();
         for (String fileName : fileNameToBlobID.keySet()) {
             String commitBlobID = fileNameToBlobID.get(fileName);
             String stagedBlobID = stageForAddition.get(fileName);
-            if (!cwd.contains(fileName)) {
+            if (!join(Repository.CWD, fileName).isFile()) {
                 // deleted in the working directory,
                 // but not staged for removal or already staged for addition.
                 if (!stageForRemoval.contains(fileName)
@@ -144,7 +252,8 @@ public class Commit implements Serializable {
         List<String> untrackedFiles = new ArrayList<>();
         StagingArea stagingArea = StagingArea.getStagingArea();
         Map<String, String> stageForAddition = stagingArea.getStageForAddition();
-        for (String fileName : plainFilenamesIn(Repository.CWD)) {
+        Map<String, String> fileNameToBlobID = getFileNameToBlobID();
+        for (String fileName : Repository.workingFileNames()) {
             if (!fileNameToBlobID.containsKey(fileName)
                     && !stageForAddition.containsKey(fileName)) {
                 untrackedFiles.add(fileName);
@@ -154,6 +263,10 @@ public class Commit implements Serializable {
     }
 
 
+    public Date getTimeStamp() {
+        return timeStamp;
+    }
+
     public String getParentCommitID() {
         return parentCommitID;
     }
@@ -166,8 +279,32 @@ public class Commit implements Serializable {
         return message;
     }
 
-    public Map<String, String> getFileNameToBlobID() {
-        return fileNameToBlobID;
+    // The map is shared by every user of a cached commit, so it cannot
+    // be changed; copy it to build the files of a new commit.
+    public synchronized Map<String, String> getFileNameToBlobID() {
+        if (fileNameToBlobID == null) {
+            fileNameToBlobID = Tree.flatten(treeID);
+        }
+        return Collections.unmodifiableMap(fileNameToBlobID);
+    }
+
+    // Return the ID of the tree of this commit. Commits from older versions
+    // have none; a tree is stored for them the first time it is needed.
+    public synchronized String getTreeID() {
+        if (treeID == null) {
+            treeID = Tree.write(fileNameToBlobID);
+        }
+        return treeID;
+    }
+
+    // Return the ID of the tree this commit was stored with, or null if it
+    // is from an older version and lists its files itself.
+    String getStoredTreeID() {
+        return treeID;
+    }
+
+    public static ObjectCache<Commit> getCache() {
+        return CACHE;
     }
 
     public String getCommitID() {
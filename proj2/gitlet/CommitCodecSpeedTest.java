@@ -0,0 +1,76 @@
+package gitlet;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** Compares the binary commit encoding against Java serialization, the
+ *  format commits were stored in before, for throughput and size. The
+ *  binary encode time includes hashing the commit's tree from its file
+ *  map, as making a new commit from scratch does; its size and decode time
+ *  cover only the commit, since trees are read when the files are needed
+ *  and are shared with other commits.
+ *  Usage: java gitlet.CommitCodecSpeedTest [FILES] [ROUNDS]
+ */
+public class CommitCodecSpeedTest {
+
+    public static void main(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        Map<String, String> fileMap = new TreeMap<>();
+        for (int i = 0; i < files; i += 1) {
+            fileMap.put("file" + i + ".txt", sha1("content " + i));
+        }
+        Commit commit = new Commit("a commit with " + files + " files",
+                sha1("parent"), fileMap);
+        String commitID = commit.getCommitID();
+
+        byte[] serialized = serialize(commit);
+        byte[] encoded = commit.encode();
+        System.out.printf("Commit with %d files, %d rounds%n", files, rounds);
+        System.out.printf("%-14s %10s %14s %14s%n",
+                "format", "bytes", "encode/sec", "decode/sec");
+
+        // Run each format once before timing it, so that both are measured
+        // with the JIT warmed up.
+        for (int warmUp = 0; warmUp < 2; warmUp += 1) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i += 1) {
+                serialize(commit);
+            }
+            double serializeRate = rate(rounds, start);
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i += 1) {
+                deserialize(serialized, Commit.class);
+            }
+            double deserializeRate = rate(rounds, start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i += 1) {
+                Tree.hash(fileMap);
+                commit.encode();
+            }
+            double encodeRate = rate(rounds, start);
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i += 1) {
+                Commit.decode(commitID, encoded);
+            }
+            double decodeRate = rate(rounds, start);
+
+            if (warmUp == 1) {
+                System.out.printf("%-14s %10d %14.0f %14.0f%n", "serialization",
+                        serialized.length, serializeRate, deserializeRate);
+                System.out.printf("%-14s %10d %14.0f %14.0f%n", "binary",
+                        encoded.length, encodeRate, decodeRate);
+            }
+        }
+    }
+
+    /** Returns the number of operations per second, given that N operations
+     *  started at nanosecond START. */
+    private static double rate(int n, long start) {
+        return n / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,373 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/** The shape of the commit history, kept apart from the commits themselves.
+ *
+ *  .gitlet/commit-graph holds one fixed-size record per commit, sorted by
+ *  commit ID: the positions of its parents in the same file, its generation
+ *  number (one more than the largest generation of its parents) and its
+ *  time stamp. The file is memory-mapped, so walking the history reads a
+ *  few ints instead of deserializing every commit on the way.
+ *
+ *  Commits that are not in the file yet are added the first time they are
+ *  asked for, and the file is rewritten at the end of the command.
+ */
+public class CommitGraph {
+
+    /** The file the graph is saved in. */
+    private static final String GRAPH_FILE_NAME = "commit-graph";
+    /** Magic number at the start of the graph file. */
+    private static final int GRAPH_MAGIC = 0x47434752; // "GCGR"
+    /** Version of the graph format written by this class. */
+    private static final int FORMAT_VERSION = 1;
+    /** Size of the header: magic, version, commit count. */
+    private static final int HEADER_SIZE = 12;
+    /** Size of a record: ID, two parents, generation, time stamp. */
+    private static final int RECORD_SIZE = ObjectStore.RAW_ID_LENGTH + 4 + 4 + 4 + 8;
+    /** The parent position of a commit without that parent. */
+    private static final int NONE = -1;
+
+    /** Flags used by findMergeBase to paint the history. */
+    private static final int FROM_FIRST = 1;
+    private static final int FROM_SECOND = 2;
+
+    /** The graph of the current command, loaded on first use. */
+    private static CommitGraph commitGraph;
+
+    /** The records of the graph file, or null if there is none. */
+    private final MappedByteBuffer records;
+    /** The number of records in the graph file. */
+    private final int fileCount;
+    /** Commits added during this command, at positions from FILECOUNT on. */
+    private final List<Node> added = new ArrayList<>();
+    /** The positions of the added commits by ID. */
+    private final Map<String, Integer> addedPositions = new HashMap<>();
+
+    private CommitGraph() {
+        File graphFile = graphFile();
+        MappedByteBuffer mapped = null;
+        int count = 0;
+        if (graphFile.isFile()) {
+            try (FileChannel channel = FileChannel.open(graphFile.toPath())) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            if (mapped.getInt(0) == GRAPH_MAGIC && mapped.getInt(4) == FORMAT_VERSION) {
+                count = mapped.getInt(8);
+            } else {
+                // An unknown format is rebuilt from the commits as needed.
+                mapped = null;
+            }
+        }
+        records = mapped;
+        fileCount = count;
+    }
+
+    public static CommitGraph getCommitGraph() {
+        if (commitGraph == null) {
+            commitGraph = new CommitGraph();
+        }
+        return commitGraph;
+    }
+
+    private static File graphFile() {
+        return join(Repository.GITLET_DIR, GRAPH_FILE_NAME);
+    }
+
+    // Forget the graph, so it is read again when next used.
+    public static void reset() {
+        commitGraph = null;
+    }
+
+    // Save the graph of the current command if commits were added to it.
+    public static void saveIfChanged() {
+        if (commitGraph != null && !commitGraph.added.isEmpty()
+                && Repository.GITLET_DIR.isDirectory()) {
+            try (Locks.Held lock = Locks.hold(Repository.GITLET_DIR, Locks.CACHES, true)) {
+                commitGraph.save();
+            }
+            commitGraph = null;
+        }
+    }
+
+    /** Returns the position of the commit ID, adding it and its ancestors
+     *  to the graph if needed, or NONE if there is no such commit. */
+    public int find(String id) {
+        if (id == null) {
+            return NONE;
+        }
+        int pos = lookUp(id);
+        if (pos != NONE) {
+            return pos;
+        }
+        // Add missing ancestors first, so that every commit is added after
+        // its parents and can refer to their positions.
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(id);
+        while (!stack.isEmpty()) {
+            String commitID = stack.peek();
+            if (lookUp(commitID) != NONE) {
+                stack.pop();
+                continue;
+            }
+            Commit commit = Commit.findCommit(commitID);
+            if (commit == null) {
+                stack.pop();
+                if (commitID.equals(id)) {
+                    return NONE;
+                }
+                continue;
+            }
+            String first = commit.getParentCommitID();
+            String second = commit.getSecondParentCommitID();
+            boolean ready = true;
+            for (String parent : new String[] {first, second}) {
+                if (parent != null && lookUp(parent) == NONE
+                        && Repository.COMMIT_STORE.contains(parent)) {
+                    stack.push(parent);
+                    ready = false;
+                }
+            }
+            if (ready) {
+                stack.pop();
+                add(commitID, lookUp(first), lookUp(second),
+                        commit.getTimeStamp().getTime());
+            }
+        }
+        return lookUp(id);
+    }
+
+    private void add(String id, int first, int second, long time) {
+        int generation = 1 + Math.max(first == NONE ? 0 : generation(first),
+                second == NONE ? 0 : generation(second));
+        addedPositions.put(id, fileCount + added.size());
+        added.add(new Node(id, first, second, generation, time));
+    }
+
+    /** Returns the position of ID without adding anything, or NONE. */
+    private int lookUp(String id) {
+        if (id == null) {
+            return NONE;
+        }
+        Integer pos = addedPositions.get(id);
+        if (pos != null) {
+            return pos;
+        }
+        return records == null ? NONE : search(id);
+    }
+
+    /** Binary search for ID in the graph file. */
+    private int search(String id) {
+        byte[] target = ObjectStore.toRawID(id);
+        byte[] probe = new byte[ObjectStore.RAW_ID_LENGTH];
+        int lo = 0;
+        int hi = fileCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            records.get(HEADER_SIZE + mid * RECORD_SIZE, probe);
+            int cmp = Arrays.compareUnsigned(probe, target);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return NONE;
+    }
+
+    public String id(int pos) {
+        if (pos >= fileCount) {
+            return added.get(pos - fileCount).id;
+        }
+        byte[] raw = new byte[ObjectStore.RAW_ID_LENGTH];
+        records.get(HEADER_SIZE + pos * RECORD_SIZE, raw);
+        return ObjectStore.fromRawID(raw);
+    }
+
+    /** Returns the position of the first parent of the commit at POS. */
+    public int firstParent(int pos) {
+        if (pos >= fileCount) {
+            return added.get(pos - fileCount).first;
+        }
+        return records.getInt(HEADER_SIZE + pos * RECORD_SIZE + ObjectStore.RAW_ID_LENGTH);
+    }
+
+    /** Returns the position of the second parent of the commit at POS. */
+    public int secondParent(int pos) {
+        if (pos >= fileCount) {
+            return added.get(pos - fileCount).second;
+        }
+        return records.getInt(HEADER_SIZE + pos * RECORD_SIZE + ObjectStore.RAW_ID_LENGTH + 4);
+    }
+
+    public int generation(int pos) {
+        if (pos >= fileCount) {
+            return added.get(pos - fileCount).generation;
+        }
+        return records.getInt(HEADER_SIZE + pos * RECORD_SIZE + ObjectStore.RAW_ID_LENGTH + 8);
+    }
+
+    public long time(int pos) {
+        if (pos >= fileCount) {
+            return added.get(pos - fileCount).time;
+        }
+        return records.getLong(HEADER_SIZE + pos * RECORD_SIZE + ObjectStore.RAW_ID_LENGTH + 12);
+    }
+
+    /** Returns the latest common ancestor of the commits FIRSTID and
+     *  SECONDID, or null if they have none.
+     *
+     *  Commits are visited in order of decreasing generation, marking each
+     *  with the side(s) it was reached from. Every descendant of a commit
+     *  has a larger generation, so a commit's marks are final when it is
+     *  visited, and the first commit reached from both sides is a common
+     *  ancestor that no other common ancestor descends from. The search
+     *  stops there instead of walking the rest of the history. */
+    public String findMergeBase(String firstID, String secondID) {
+        int first = find(firstID);
+        int second = find(secondID);
+        if (first == NONE || second == NONE) {
+            return null;
+        }
+        Map<Integer, Integer> marks = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) -> {
+            int cmp = Integer.compare(generation(b), generation(a));
+            return cmp != 0 ? cmp : Long.compare(time(b), time(a));
+        });
+        marks.put(first, FROM_FIRST);
+        marks.merge(second, FROM_SECOND, (a, b) -> a | b);
+        queue.add(first);
+        if (second != first) {
+            queue.add(second);
+        }
+        while (!queue.isEmpty()) {
+            int pos = queue.poll();
+            int mark = marks.get(pos);
+            if (mark == (FROM_FIRST | FROM_SECOND)) {
+                return id(pos);
+            }
+            for (int parent : new int[] {firstParent(pos), secondParent(pos)}) {
+                if (parent == NONE) {
+                    continue;
+                }
+                Integer old = marks.get(parent);
+                if (old == null) {
+                    marks.put(parent, mark);
+                    queue.add(parent);
+                } else if ((old | mark) != old) {
+                    marks.put(parent, old | mark);
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Returns true if the commit ANCESTORID is DESCENDANTID or one of its
+     *  ancestors. Commits with a smaller generation than ANCESTORID cannot
+     *  lead to it, so they are not walked. */
+    public boolean isAncestor(String ancestorID, String descendantID) {
+        int ancestor = lookUp(ancestorID);
+        if (ancestor == NONE && !Repository.COMMIT_STORE.contains(ancestorID)) {
+            return false;
+        }
+        ancestor = find(ancestorID);
+        int descendant = find(descendantID);
+        if (ancestor == NONE || descendant == NONE) {
+            return false;
+        }
+        int minGeneration = generation(ancestor);
+        Set<Integer> visited = new HashSet<>();
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(descendant);
+        while (!stack.isEmpty()) {
+            int pos = stack.pop();
+            if (pos == ancestor) {
+                return true;
+            }
+            if (!visited.add(pos) || generation(pos) <= minGeneration) {
+                continue;
+            }
+            for (int parent : new int[] {firstParent(pos), secondParent(pos)}) {
+                if (parent != NONE) {
+                    stack.push(parent);
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Writes all commits of the graph, sorted by ID, to the graph file. */
+    private void save() {
+        int count = fileCount + added.size();
+        Integer[] order = new Integer[count];
+        String[] ids = new String[count];
+        for (int i = 0; i < count; i += 1) {
+            order[i] = i;
+            ids[i] = id(i);
+        }
+        Arrays.sort(order, (a, b) -> ids[a].compareTo(ids[b]));
+        int[] newPosition = new int[count];
+        for (int i = 0; i < count; i += 1) {
+            newPosition[order[i]] = i;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + count * RECORD_SIZE);
+        out.putInt(GRAPH_MAGIC).putInt(FORMAT_VERSION).putInt(count);
+        for (int pos : order) {
+            int first = firstParent(pos);
+            int second = secondParent(pos);
+            out.put(ObjectStore.toRawID(ids[pos]));
+            out.putInt(first == NONE ? NONE : newPosition[first]);
+            out.putInt(second == NONE ? NONE : newPosition[second]);
+            out.putInt(generation(pos));
+            out.putLong(time(pos));
+        }
+        File temp = join(Repository.GITLET_DIR, GRAPH_FILE_NAME + ".tmp");
+        writeContents(temp, out.array());
+        try {
+            Files.move(temp.toPath(), graphFile().toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** A commit added to the graph during this command. */
+    private static class Node {
+        private final String id;
+        private final int first;
+        private final int second;
+        private final int generation;
+        private final long time;
+
+        Node(String id, int first, int second, int generation, long time) {
+            this.id = id;
+            this.first = first;
+            this.second = second;
+            this.generation = generation;
+            this.time = time;
+        }
+    }
+}
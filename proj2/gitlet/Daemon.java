@@ -0,0 +1,239 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/** The server side of gitlet:// remotes, run by gitlet serve.
+ *
+ *  The daemon listens on the loopback interface only and serves the
+ *  .gitlet directories under the directory it was started in. Each
+ *  connection is handled on its own thread and carries one push or fetch,
+ *  in the protocol described in NetworkRemote. A connection that sends
+ *  nothing for SOCKET_TIMEOUT_MILLIS is dropped. Two pushes of the same
+ *  commit take turns for its transfer pack, objects are unpacked under a
+ *  shared lock on the object stores, so gc waits for them, and branch
+ *  updates are serialized. A push is refused if the branch moved while its
+ *  objects were being received.
+ */
+public class Daemon {
+
+    /** How long a connection may send nothing before it is dropped. A push
+     *  cut off this way leaves its pack to be resumed. */
+    private static final int SOCKET_TIMEOUT_MILLIS = 60_000;
+
+    /** The directory whose repositories are served. */
+    private final Path root;
+    /** What threads of this daemon synchronize on for each transfer pack
+     *  resource, by .gitlet directory and resource; threads of one process
+     *  cannot share a file lock. */
+    private final Map<String, Object> transferMonitors = new ConcurrentHashMap<>();
+
+    private Daemon(File root) throws IOException {
+        this.root = root.getCanonicalFile().toPath();
+    }
+
+    /** Serves the repositories under ROOT on PORT, or on a free port if
+     *  PORT is 0, until the process is killed. */
+    public static void serve(File root, int port) {
+        ExecutorService workers = Executors.newCachedThreadPool();
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            Daemon daemon = new Daemon(root);
+            System.out.println("Serving " + daemon.root + " on port "
+                    + server.getLocalPort() + ".");
+            System.out.flush();
+            while (true) {
+                Socket socket = server.accept();
+                workers.execute(() -> daemon.handle(socket));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Answers the request on SOCKET. A failure ends this connection only. */
+    private void handle(Socket socket) {
+        try (socket) {
+            socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+            DataInputStream in = NetworkRemote.input(socket);
+            DataOutputStream out = NetworkRemote.output(socket);
+            if (in.readInt() != NetworkRemote.PROTOCOL_MAGIC
+                    || in.readUnsignedByte() != NetworkRemote.PROTOCOL_VERSION) {
+                replyError(out, "Unsupported remote protocol.");
+                return;
+            }
+            int command = in.readUnsignedByte();
+            File gitletDir = resolve(readString(in));
+            String branchName = readString(in);
+            if (gitletDir == null) {
+                replyError(out, "Remote directory not found.");
+            } else if (command == NetworkRemote.FETCH) {
+                handleFetch(gitletDir, branchName, in, out);
+            } else if (command == NetworkRemote.PUSH) {
+                handlePush(gitletDir, branchName, readID(in), in, out);
+            } else {
+                replyError(out, "Unsupported remote protocol.");
+            }
+        } catch (IOException | RuntimeException excp) {
+            System.err.println("gitlet serve: " + excp);
+        }
+    }
+
+    private void handleFetch(File gitletDir, String branchName, DataInputStream in,
+                             DataOutputStream out) throws IOException {
+        File branchFile = branchFile(gitletDir, branchName);
+        if (branchFile == null || !branchFile.isFile()) {
+            replyError(out, "That remote does not have that branch.");
+            return;
+        }
+        String tipID = readContentsAsString(branchFile);
+        out.writeByte(NetworkRemote.OK);
+        writeID(out, tipID);
+        out.flush();
+        List<String> clientTips = NetworkRemote.readIDs(in);
+        Set<String> received = new LinkedHashSet<>(NetworkRemote.readIDs(in));
+
+        Transfer.Stores from = new Transfer.Stores(gitletDir);
+        Transfer.Advertised have = new Transfer.Advertised(tipID, clientTips, from);
+        List<Transfer.ObjectRef> wanted = Transfer.negotiate(tipID, from, have);
+        out.writeInt(wanted.size());
+        out.flush();
+        DeflaterOutputStream deflater = NetworkRemote.compress(out);
+        DataOutputStream packOut = new DataOutputStream(deflater);
+        Transfer.send(wanted, from, have, received, packOut, Transfer.Progress.quiet());
+        packOut.writeByte(Transfer.END);
+        packOut.flush();
+        deflater.finish();
+        out.flush();
+    }
+
+    private void handlePush(File gitletDir, String branchName, String tipID,
+                            DataInputStream in, DataOutputStream out) throws IOException {
+        File branchFile = branchFile(gitletDir, branchName);
+        if (branchFile == null) {
+            replyError(out, "Incorrect operands.");
+            return;
+        }
+        String branchCommitID = branchFile.isFile() ? readContentsAsString(branchFile) : null;
+        String resource = Locks.transfer(tipID);
+        synchronized (transferMonitors.computeIfAbsent(gitletDir.getPath() + "/" + resource,
+                key -> new Object())) {
+            try (Locks.Held lock = Locks.hold(gitletDir, resource, true)) {
+                if (!receivePush(gitletDir, tipID, branchCommitID, in, out)) {
+                    return;
+                }
+            }
+        }
+
+        // Threads of this daemon cannot share a file lock, so they take
+        // turns for it; the lock keeps out gitlet commands run on the
+        // repository itself.
+        synchronized (this) {
+            try (Locks.Held lock = Locks.hold(gitletDir, Locks.branch(branchName), true)) {
+                String current = branchFile.isFile() ? readContentsAsString(branchFile) : null;
+                if (current != null && !current.equals(branchCommitID)) {
+                    replyError(out, "Please pull down remote changes before pushing.");
+                    return;
+                }
+                Journal.writeAtomically(gitletDir, branchFile, tipID);
+            }
+        }
+        out.writeByte(NetworkRemote.OK);
+        out.flush();
+    }
+
+    /** Receives the objects of a push of the commit TIPID into its
+     *  transfer pack and unpacks them into the stores of GITLETDIR, with
+     *  the pack locked. Returns false if the client gave up. */
+    private boolean receivePush(File gitletDir, String tipID, String branchCommitID,
+                                DataInputStream in, DataOutputStream out) throws IOException {
+        File packFile = Transfer.packFile(gitletDir, tipID);
+        boolean proceed;
+        try (Transfer.PackWriter pack = new Transfer.PackWriter(packFile)) {
+            out.writeByte(NetworkRemote.OK);
+            out.writeBoolean(branchCommitID != null);
+            if (branchCommitID != null) {
+                writeID(out, branchCommitID);
+            }
+            NetworkRemote.writeIDs(out, tips(gitletDir));
+            NetworkRemote.writeIDs(out, pack.getReceived());
+            out.flush();
+            proceed = in.readUnsignedByte() == NetworkRemote.OK;
+            if (proceed) {
+                in.readInt(); // The number of objects, only used for progress.
+                Transfer.receive(new DataInputStream(new BufferedInputStream(
+                        new InflaterInputStream(in))), pack, Transfer.Progress.quiet());
+            }
+        }
+        if (!proceed) {
+            // The client refused to push; keep only a pack with records in it.
+            if (packFile.length() <= Transfer.HEADER_SIZE) {
+                packFile.delete();
+            }
+            return false;
+        }
+        synchronized (this) {
+            try (Locks.Held lock = Locks.hold(gitletDir, Locks.OBJECTS, false)) {
+                Transfer.unpack(packFile, new Transfer.Stores(gitletDir));
+            }
+        }
+        packFile.delete();
+        return true;
+    }
+
+    /** Returns the .gitlet directory at PATH under the served directory, or
+     *  null if there is none or PATH leads outside it. */
+    private File resolve(String path) {
+        Path resolved = root.resolve(path).normalize();
+        if (!resolved.startsWith(root) || !join(resolved.toFile(), "commits").isDirectory()) {
+            return null;
+        }
+        return resolved.toFile();
+    }
+
+    /** Returns the file of the branch BRANCHNAME in GITLETDIR, or null if
+     *  the name is not a plain file name. */
+    private static File branchFile(File gitletDir, String branchName) {
+        if (branchName.isEmpty() || branchName.contains("/") || branchName.contains("\\")
+                || branchName.equals(".") || branchName.equals("..")) {
+            return null;
+        }
+        return join(gitletDir, "refs", "heads", branchName);
+    }
+
+    /** Returns the IDs of the commits at the tips of the branches of the
+     *  repository in GITLETDIR. */
+    private static Set<String> tips(File gitletDir) {
+        Set<String> tips = new LinkedHashSet<>();
+        File headsDir = join(gitletDir, "refs", "heads");
+        List<String> branchNames = plainFilenamesIn(headsDir);
+        for (String name : branchNames == null ? new ArrayList<String>() : branchNames) {
+            tips.add(readContentsAsString(join(headsDir, name)));
+        }
+        return tips;
+    }
+
+    private static void replyError(DataOutputStream out, String message) throws IOException {
+        out.writeByte(NetworkRemote.ERROR);
+        writeString(out, message);
+        out.flush();
+    }
+}
@@ -0,0 +1,359 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Line-based comparison of file contents.
+ *
+ *  Lines are compared as whole byte sequences, including their line
+ *  terminator, after being replaced by small integers so that comparing
+ *  two lines is one int comparison. The matching lines of two files are
+ *  found with Myers' O(ND) algorithm in its linear-space form, which
+ *  bisects the edit script at a "middle snake" instead of keeping the
+ *  search history, after stripping the common prefix and suffix.
+ */
+public class Diff {
+
+    /** Conflict markers, the same as for conflicts over whole files. */
+    static final String CURRENT_MARKER = "<<<<<<< HEAD\n";
+    static final String SEPARATOR_MARKER = "=======\n";
+    static final String END_MARKER = ">>>>>>>\n";
+
+    /** The lines of several files, each line numbered by its contents. */
+    static class Lines {
+        /** The number given to each distinct line seen so far. */
+        private final Map<String, Integer> numbers = new HashMap<>();
+
+        /** Splits CONTENT into lines, keeping each line's terminator. The
+         *  last line may have none. Bytes map one-to-one onto ISO-8859-1
+         *  characters, so any contents survive the round trip. */
+        String[] split(byte[] content) {
+            String text = new String(content, StandardCharsets.ISO_8859_1);
+            List<String> lines = new ArrayList<>();
+            int start = 0;
+            for (int i = 0; i < text.length(); i += 1) {
+                if (text.charAt(i) == '\n') {
+                    lines.add(text.substring(start, i + 1));
+                    start = i + 1;
+                }
+            }
+            if (start < text.length()) {
+                lines.add(text.substring(start));
+            }
+            return lines.toArray(new String[0]);
+        }
+
+        /** Returns the numbers of LINES. */
+        int[] number(String[] lines) {
+            int[] result = new int[lines.length];
+            for (int i = 0; i < lines.length; i += 1) {
+                Integer number = numbers.get(lines[i]);
+                if (number == null) {
+                    number = numbers.size();
+                    numbers.put(lines[i], number);
+                }
+                result[i] = number;
+            }
+            return result;
+        }
+    }
+
+    /** Returns true if CONTENT looks like a binary file, which is not
+     *  merged line by line. */
+    static boolean isBinary(byte[] content) {
+        int length = Math.min(content.length, 8000);
+        for (int i = 0; i < length; i += 1) {
+            if (content[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns, for each line of A, the index of the line of B it is
+     *  matched with in a longest common subsequence, or -1. */
+    static int[] match(int[] a, int[] b) {
+        int[] matches = new int[a.length];
+        Arrays.fill(matches, -1);
+        int size = a.length + b.length + 3;
+        int[] forward = new int[2 * size];
+        int[] backward = new int[2 * size];
+        match(a, 0, a.length, b, 0, b.length, matches, forward, backward);
+        return matches;
+    }
+
+    private static void match(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi,
+                              int[] matches, int[] forward, int[] backward) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            matches[aLo] = bLo;
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi -= 1;
+            bHi -= 1;
+            matches[aHi] = bHi;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            return;
+        }
+        int[] snake = middleSnake(a, aLo, aHi, b, bLo, bHi, forward, backward);
+        int x = snake[0];
+        int y = snake[1];
+        int u = snake[2];
+        int v = snake[3];
+        match(a, aLo, aLo + x, b, bLo, bLo + y, matches, forward, backward);
+        for (int i = x; i < u; i += 1) {
+            matches[aLo + i] = bLo + y + (i - x);
+        }
+        match(a, aLo + u, aHi, b, bLo + v, bHi, matches, forward, backward);
+    }
+
+    /** Returns the middle snake of the shortest edit script between the
+     *  two ranges, as {x, y, u, v}: the diagonal from (x, y) to (u, v),
+     *  relative to the starts of the ranges. FORWARD and BACKWARD hold
+     *  the furthest x reached on each diagonal k, at index k + OFFSET. */
+    private static int[] middleSnake(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi,
+                                     int[] forward, int[] backward) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int offset = forward.length / 2;
+        int max = (n + m + 1) / 2;
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        for (int d = 0; d <= max; d += 1) {
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])) {
+                    x = forward[offset + k + 1];
+                } else {
+                    x = forward[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[offset + k] = x;
+                if (odd && k >= delta - (d - 1) && k <= delta + (d - 1)
+                        && x + backward[offset + delta - k] >= n) {
+                    return new int[] {startX, startY, x, y};
+                }
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1])) {
+                    x = backward[offset + k + 1];
+                } else {
+                    x = backward[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aHi - 1 - x] == b[bHi - 1 - y]) {
+                    x += 1;
+                    y += 1;
+                }
+                backward[offset + k] = x;
+                if (!odd && delta - k >= -d && delta - k <= d
+                        && x + forward[offset + delta - k] >= n) {
+                    return new int[] {n - x, m - y, n - startX, m - startY};
+                }
+            }
+        }
+        throw new IllegalStateException("no middle snake");
+    }
+
+    /** Merges the changes from BASE to CURRENT and from BASE to OTHER and
+     *  writes the result to OUT. Changes to different lines are both kept;
+     *  where the two sides changed the same lines differently, both
+     *  versions are written between conflict markers. Returns true if there
+     *  was a conflict. */
+    public static boolean merge(byte[] base, byte[] current, byte[] other, OutputStream out)
+            throws IOException {
+        Lines lines = new Lines();
+        String[] baseLines = lines.split(base);
+        String[] currentLines = lines.split(current);
+        String[] otherLines = lines.split(other);
+        int[] baseNumbers = lines.number(baseLines);
+        int[] currentNumbers = lines.number(currentLines);
+        int[] otherNumbers = lines.number(otherLines);
+        int[] toCurrent = match(baseNumbers, currentNumbers);
+        int[] toOther = match(baseNumbers, otherNumbers);
+
+        boolean conflict = false;
+        int o = 0;
+        int c = 0;
+        int t = 0;
+        while (o <= baseLines.length) {
+            // Find the next base line kept by both sides; everything before
+            // it on each side is one unstable chunk.
+            int next = o;
+            while (next < baseLines.length && (toCurrent[next] < 0 || toOther[next] < 0)) {
+                next += 1;
+            }
+            int nextCurrent = next < baseLines.length ? toCurrent[next] : currentLines.length;
+            int nextOther = next < baseLines.length ? toOther[next] : otherLines.length;
+            boolean currentChanged = !sameLines(baseNumbers, o, next,
+                    currentNumbers, c, nextCurrent);
+            boolean otherChanged = !sameLines(baseNumbers, o, next,
+                    otherNumbers, t, nextOther);
+            if (!otherChanged) {
+                write(out, currentLines, c, nextCurrent);
+            } else if (!currentChanged || sameLines(currentNumbers, c, nextCurrent,
+                    otherNumbers, t, nextOther)) {
+                write(out, otherLines, t, nextOther);
+            } else {
+                conflict = true;
+                out.write(CURRENT_MARKER.getBytes(StandardCharsets.ISO_8859_1));
+                write(out, currentLines, c, nextCurrent);
+                out.write(SEPARATOR_MARKER.getBytes(StandardCharsets.ISO_8859_1));
+                write(out, otherLines, t, nextOther);
+                out.write(END_MARKER.getBytes(StandardCharsets.ISO_8859_1));
+            }
+            if (next == baseLines.length) {
+                break;
+            }
+            write(out, baseLines, next, next + 1);
+            o = next + 1;
+            c = nextCurrent + 1;
+            t = nextOther + 1;
+        }
+        return conflict;
+    }
+
+    private static boolean sameLines(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi) {
+        return Arrays.equals(a, aLo, aHi, b, bLo, bHi);
+    }
+
+    private static void write(OutputStream out, String[] lines, int lo, int hi)
+            throws IOException {
+        for (int i = lo; i < hi; i += 1) {
+            out.write(lines[i].getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    /** Writes the differences between the contents A of the file ANAME
+     *  and B of the file BNAME to OUT as a unified diff with CONTEXT lines
+     *  around each change. Either name is null for a missing file. Each
+     *  hunk is written as soon as it is complete. */
+    public static void writeUnified(String aName, byte[] a, String bName, byte[] b,
+                                    int context, OutputStream out) throws IOException {
+        String path = aName != null ? aName : bName;
+        print(out, "diff --gitlet a/" + path + " b/" + path + "\n");
+        if (isBinary(a) || isBinary(b)) {
+            print(out, "Binary files " + (aName == null ? "/dev/null" : "a/" + aName)
+                    + " and " + (bName == null ? "/dev/null" : "b/" + bName) + " differ\n");
+            return;
+        }
+        print(out, "--- " + (aName == null ? "/dev/null" : "a/" + aName) + "\n");
+        print(out, "+++ " + (bName == null ? "/dev/null" : "b/" + bName) + "\n");
+
+        Lines lines = new Lines();
+        String[] aLines = lines.split(a);
+        String[] bLines = lines.split(b);
+        int[] matches = match(lines.number(aLines), lines.number(bLines));
+        // For each line of B, whether some line of A is matched with it.
+        boolean[] kept = new boolean[bLines.length];
+        for (int match : matches) {
+            if (match >= 0) {
+                kept[match] = true;
+            }
+        }
+
+        int i = 0;
+        int j = 0;
+        while (true) {
+            // Skip to the next change.
+            while (i < aLines.length && j < bLines.length && matches[i] == j) {
+                i += 1;
+                j += 1;
+            }
+            if (i == aLines.length && j == bLines.length) {
+                return;
+            }
+            // A hunk starts CONTEXT lines before the change and grows while
+            // the next change is at most 2 * CONTEXT unchanged lines away.
+            int aStart = Math.max(0, i - context);
+            int bStart = j - (i - aStart);
+            int aEnd = i;
+            int bEnd = j;
+            while (true) {
+                while (aEnd < aLines.length && matches[aEnd] < 0) {
+                    aEnd += 1;
+                }
+                while (bEnd < bLines.length && !kept[bEnd]) {
+                    bEnd += 1;
+                }
+                int same = 0;
+                while (aEnd + same < aLines.length && bEnd + same < bLines.length
+                        && matches[aEnd + same] == bEnd + same && same <= 2 * context) {
+                    same += 1;
+                }
+                boolean atEnd = aEnd + same == aLines.length && bEnd + same == bLines.length;
+                if (same > 2 * context || atEnd) {
+                    int tail = Math.min(same, context);
+                    aEnd += tail;
+                    bEnd += tail;
+                    break;
+                }
+                aEnd += same;
+                bEnd += same;
+            }
+            writeHunk(out, aLines, aStart, aEnd, bLines, bStart, bEnd, matches);
+            i = aEnd;
+            j = bEnd;
+        }
+    }
+
+    private static void writeHunk(OutputStream out, String[] aLines, int aStart, int aEnd,
+                                  String[] bLines, int bStart, int bEnd, int[] matches)
+            throws IOException {
+        print(out, "@@ -" + range(aStart, aEnd) + " +" + range(bStart, bEnd) + " @@\n");
+        int i = aStart;
+        int j = bStart;
+        while (i < aEnd || j < bEnd) {
+            if (i < aEnd && j < bEnd && matches[i] == j) {
+                writeLine(out, " ", aLines[i]);
+                i += 1;
+                j += 1;
+            } else if (i < aEnd && matches[i] < 0) {
+                writeLine(out, "-", aLines[i]);
+                i += 1;
+            } else {
+                writeLine(out, "+", bLines[j]);
+                j += 1;
+            }
+        }
+    }
+
+    /** Returns a hunk range in unified diff form: the first line, counting
+     *  from 1, and the number of lines. */
+    private static String range(int start, int end) {
+        int count = end - start;
+        return (count == 0 ? start : start + 1) + "," + count;
+    }
+
+    private static void writeLine(OutputStream out, String prefix, String line)
+            throws IOException {
+        print(out, prefix);
+        out.write(line.getBytes(StandardCharsets.ISO_8859_1));
+        if (!line.endsWith("\n")) {
+            print(out, "\n\\ No newline at end of file\n");
+        }
+    }
+
+    private static void print(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,223 @@
+package gitlet;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Runs a series of gitlet commands in this process, in one repository,
+ *  and saves what they changed once, when the session is closed:
+ *
+ *      try (GitletSession session = new GitletSession(dir)) {
+ *          session.run("add", "a.txt");
+ *          GitletSession.Result result = session.run("commit", "Add a");
+ *          ...
+ *      }
+ *
+ *  Each command sees what the commands before it did. What they read,
+ *  such as the stage, the commit graph and the objects, stays loaded
+ *  between them, and their changes to the branches, HEAD and the stage
+ *  stay in memory until close, which saves them all at once. A command
+ *  that fails is reported by its Result; like java gitlet.Main, it checks
+ *  for errors before changing anything, so the commands after it go on
+ *  from where the ones before it left off. A session that is never closed
+ *  saves nothing but the objects and working files its commands wrote.
+ *
+ *  The session holds every lock of the repository from its first command
+ *  in it to close, so other gitlet commands wait for it. Only one session
+ *  or command can run in a process at a time, and what commands print is
+ *  captured by replacing System.out while they run.
+ */
+public class GitletSession implements AutoCloseable {
+
+    /** The working directory of the commands. */
+    private final File dir;
+    /** True once the repository has been locked. */
+    private boolean locked;
+    /** True once the session has been closed. */
+    private boolean closed;
+
+    /** The outcome of one command. */
+    public static class Result {
+        private final List<String> args;
+        private final String output;
+        private final String error;
+
+        private Result(String[] args, String output, String error) {
+            this.args = List.of(args);
+            this.output = output;
+            this.error = error;
+        }
+
+        /** The command and its operands. */
+        public List<String> getArgs() {
+            return args;
+        }
+
+        /** What the command printed, not counting the error message. */
+        public String getOutput() {
+            return output;
+        }
+
+        /** The error message of a command that failed, or null. */
+        public String getError() {
+            return error;
+        }
+
+        public boolean isOK() {
+            return error == null;
+        }
+    }
+
+    /** A session running commands in DIR, which holds the .gitlet
+     *  directory, or will once init is run. */
+    public GitletSession(File dir) {
+        this.dir = dir.getAbsoluteFile();
+        Main.discardState();
+        Repository.setCWD(this.dir);
+    }
+
+    /** Runs the command in ARGS, the arguments java gitlet.Main would
+     *  take, and returns its outcome. */
+    public Result run(String... args) {
+        if (closed) {
+            throw new IllegalStateException("The session is closed.");
+        }
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        String error = null;
+        System.setOut(new PrintStream(output, true, StandardCharsets.UTF_8));
+        Trace.start(args);
+        try {
+            if (args.length > 0 && (args[0].equals("serve") || args[0].startsWith("--"))) {
+                throw Utils.error("Cannot run %s in a session.", args[0]);
+            }
+            lockRepository();
+            Main.execute(args);
+        } catch (GitletException excp) {
+            error = excp.getMessage();
+        } finally {
+            System.out.flush();
+            System.setOut(stdout);
+            Trace.report();
+        }
+        return new Result(args, output.toString(StandardCharsets.UTF_8), error);
+    }
+
+    /** Runs each of COMMANDS in turn, and returns their outcomes. */
+    public List<Result> runAll(List<String[]> commands) {
+        List<Result> results = new ArrayList<>();
+        for (String[] command : commands) {
+            results.add(run(command));
+        }
+        return results;
+    }
+
+    /** Saves what the commands of this session changed and releases the
+     *  repository. */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Trace.start("(close)");
+        try {
+            Main.finish();
+        } finally {
+            Main.discardState();
+            Trace.report();
+        }
+    }
+
+    // Lock the whole repository before the first command that finds one.
+    private void lockRepository() {
+        if (!locked && Repository.GITLET_DIR.isDirectory()) {
+            Journal.recover();
+            Locks.lockAll();
+            locked = true;
+        }
+    }
+
+    /** Runs the commands read from IN, one per line, in the working
+     *  directory, printing to OUT what each prints and the message of each
+     *  that fails, and saves them at the end. Operands are split as a
+     *  shell would, so a commit message with spaces is quoted. Blank lines
+     *  and lines starting with # are skipped. */
+    public static void runScript(Reader in, PrintStream out) {
+        BufferedReader lines = new BufferedReader(in);
+        try (GitletSession session = new GitletSession(Repository.CWD)) {
+            for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+                String[] args = split(line);
+                if (args == null) {
+                    out.println("Incorrect operands.");
+                    continue;
+                }
+                if (args.length == 0 || args[0].startsWith("#")) {
+                    continue;
+                }
+                Result result = session.run(args);
+                out.print(result.getOutput());
+                if (!result.isOK()) {
+                    out.println(result.getError());
+                }
+                out.flush();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns LINE split into words at unquoted white space. Single quotes
+     *  keep everything up to the next one; within double quotes, and
+     *  outside quotes, a backslash keeps the character after it. Returns
+     *  null if a quote is not closed. */
+    static String[] split(String line) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = null;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i += 1) {
+            char c = line.charAt(i);
+            if (quote == '\'') {
+                if (c == '\'') {
+                    quote = 0;
+                } else {
+                    word.append(c);
+                }
+            } else if (c == '\\' && i + 1 < line.length()) {
+                word = word == null ? new StringBuilder() : word;
+                i += 1;
+                word.append(line.charAt(i));
+            } else if (quote == '"') {
+                if (c == '"') {
+                    quote = 0;
+                } else {
+                    word.append(c);
+                }
+            } else if (c == '\'' || c == '"') {
+                word = word == null ? new StringBuilder() : word;
+                quote = c;
+            } else if (Character.isWhitespace(c)) {
+                if (word != null) {
+                    words.add(word.toString());
+                    word = null;
+                }
+            } else {
+                word = word == null ? new StringBuilder() : word;
+                word.append(c);
+            }
+        }
+        if (quote != 0) {
+            return null;
+        }
+        if (word != null) {
+            words.add(word.toString());
+        }
+        return words.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,370 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import static gitlet.Utils.*;
+
+/** Makes the changes a command makes to HEAD, the branches, the stage and
+ *  the other small files under .gitlet take effect all at once, or not at
+ *  all, even if the command is interrupted.
+ *
+ *  During a command such changes are only recorded; reads through this
+ *  class see them. At the end of the command commit first forces to disk
+ *  every object the command stored, so a branch can never point at an
+ *  object that is not there. It then writes all the recorded changes to
+ *  .gitlet/journal, with a checksum, and forces that file and .gitlet:
+ *  this single write is the moment the command takes effect. Each change
+ *  is then made by writing and forcing a temporary file and renaming it
+ *  over the old one. The directories of the changed files are forced
+ *  together once every change is made, and only then is the journal
+ *  deleted. A command that stops before the journal is complete
+ *  changes nothing; recover, run at the start of every command, redoes the
+ *  changes of a complete journal that is still there.
+ *
+ *  A command that exits with an error message records nothing, so it
+ *  leaves the repository as it found it.
+ */
+public class Journal {
+
+    /** The journal file, in the .gitlet directory. */
+    private static final String JOURNAL_FILE_NAME = "journal";
+    /** Prefix of the temporary files changes are written to, in the
+     *  .gitlet directory, before being renamed into place. */
+    private static final String TEMP_PREFIX = "journal-tmp-";
+    /** Magic number at the start of the journal. */
+    private static final int JOURNAL_MAGIC = 0x474A4E4C; // "GJNL"
+    /** Version of the journal format written by this class. */
+    private static final int FORMAT_VERSION = 1;
+    /** Kinds of change. */
+    private static final int WRITE = 0;
+    private static final int DELETE = 1;
+
+    /** The changes of the current command, by file, in the order made: the
+     *  new contents of each file, or null if it is deleted. */
+    private static final Map<File, byte[]> pending = new LinkedHashMap<>();
+    /** The object files stored by the current command and not yet forced
+     *  to disk. */
+    private static final List<File> unsyncedObjects = new ArrayList<>();
+
+    /** Records that FILE is to contain CONTENTS, a String or byte array,
+     *  at the end of the command. */
+    public static synchronized void write(File file, Object contents) {
+        byte[] bytes = contents instanceof String
+                ? ((String) contents).getBytes(StandardCharsets.UTF_8) : (byte[]) contents;
+        pending.put(file.getAbsoluteFile(), bytes);
+    }
+
+    /** Records that FILE is to be deleted at the end of the command. */
+    public static synchronized void delete(File file) {
+        pending.put(file.getAbsoluteFile(), null);
+    }
+
+    /** Returns true if FILE exists, counting the changes of this command. */
+    public static synchronized boolean exists(File file) {
+        File key = file.getAbsoluteFile();
+        if (pending.containsKey(key)) {
+            return pending.get(key) != null;
+        }
+        return file.isFile();
+    }
+
+    /** Returns the contents of FILE, counting the changes of this
+     *  command. */
+    public static synchronized byte[] readContents(File file) {
+        File key = file.getAbsoluteFile();
+        if (pending.containsKey(key)) {
+            if (pending.get(key) == null) {
+                throw new IllegalArgumentException(file.getName() + " was deleted");
+            }
+            return pending.get(key);
+        }
+        return Utils.readContents(file);
+    }
+
+    public static String readContentsAsString(File file) {
+        return new String(readContents(file), StandardCharsets.UTF_8);
+    }
+
+    /** Returns the sorted names of the plain files in DIR, counting the
+     *  changes of this command. */
+    public static synchronized List<String> plainFilenamesIn(File dir) {
+        TreeSet<String> names = new TreeSet<>();
+        List<String> onDisk = Utils.plainFilenamesIn(dir);
+        if (onDisk != null) {
+            names.addAll(onDisk);
+        }
+        File key = dir.getAbsoluteFile();
+        for (Map.Entry<File, byte[]> change : pending.entrySet()) {
+            if (key.equals(change.getKey().getParentFile())) {
+                if (change.getValue() == null) {
+                    names.remove(change.getKey().getName());
+                } else {
+                    names.add(change.getKey().getName());
+                }
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    /** Notes that the object file FILE was stored, to be forced to disk
+     *  before any change refers to it. */
+    static synchronized void recordObject(File file) {
+        unsyncedObjects.add(file);
+    }
+
+    /** Drops the changes of the current command, which failed. */
+    public static synchronized void discard() {
+        pending.clear();
+        unsyncedObjects.clear();
+    }
+
+    /** Makes the changes of the current command take effect. */
+    public static void commit() {
+        List<Map.Entry<File, byte[]>> changes;
+        synchronized (Journal.class) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            changes = new ArrayList<>();
+            for (Map.Entry<File, byte[]> change : pending.entrySet()) {
+                changes.add(new AbstractMap.SimpleEntry<>(change));
+            }
+            pending.clear();
+        }
+        syncObjects();
+        File journalFile = journalFile();
+        try (Locks.Held lock = Locks.hold(Repository.GITLET_DIR, Locks.JOURNAL, true)) {
+            try {
+                writeForced(journalFile, encode(changes));
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            // A journal whose directory entry is lost cannot be redone.
+            syncDirectories(List.of(Repository.GITLET_DIR));
+            apply(changes);
+            journalFile.delete();
+        }
+    }
+
+    /** Finishes the changes of a command that was interrupted after its
+     *  journal was complete, and drops those of one interrupted before. */
+    public static void recover() {
+        if (!journalFile().isFile() && tempFiles().isEmpty()) {
+            return;
+        }
+        // Another command may be making its changes right now; wait for it,
+        // and look again.
+        try (Locks.Held lock = Locks.hold(Repository.GITLET_DIR, Locks.JOURNAL, true)) {
+            File journalFile = journalFile();
+            if (journalFile.isFile()) {
+                List<Map.Entry<File, byte[]>> changes = decode(Utils.readContents(journalFile));
+                if (changes != null) {
+                    apply(changes);
+                }
+                journalFile.delete();
+            }
+            for (File temp : tempFiles()) {
+                temp.delete();
+            }
+        }
+    }
+
+    /** Returns the temporary files left in .gitlet by changes that were
+     *  being made. */
+    private static List<File> tempFiles() {
+        List<File> temps = new ArrayList<>();
+        List<String> names = Utils.plainFilenamesIn(Repository.GITLET_DIR);
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(TEMP_PREFIX)) {
+                    temps.add(join(Repository.GITLET_DIR, name));
+                }
+            }
+        }
+        return temps;
+    }
+
+    /** Replaces the contents of FILE, in the repository GITLETDIR, which
+     *  may not be the current one, with CONTENTS at once, after forcing the
+     *  objects stored so far to disk. Used where one file changes on its
+     *  own, like the branch a push updates. */
+    public static void writeAtomically(File gitletDir, File file, String contents) {
+        syncObjects();
+        try (Locks.Held lock = Locks.hold(gitletDir, Locks.JOURNAL, true)) {
+            File temp = Files.createTempFile(gitletDir.toPath(), TEMP_PREFIX, null).toFile();
+            writeForced(temp, contents.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            syncDirectories(List.of(file.getAbsoluteFile().getParentFile()));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Forces the objects stored by this command to disk, all at once, so
+     *  the file system can group the writes. */
+    private static void syncObjects() {
+        List<File> files;
+        synchronized (Journal.class) {
+            files = new ArrayList<>(unsyncedObjects);
+            unsyncedObjects.clear();
+        }
+        files.parallelStream().forEach(file -> {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+                Trace.count("fsyncs", 1);
+            } catch (IOException excp) {
+                // An object removed since, by gc, needs no forcing.
+            }
+        });
+    }
+
+    /** Makes each of CHANGES by writing and forcing a temporary file and
+     *  renaming it into place, or deleting the file, and then forces the
+     *  directories that changed, so the journal can be deleted. Making them
+     *  again is harmless. */
+    private static void apply(List<Map.Entry<File, byte[]>> changes) {
+        Set<File> dirs = new LinkedHashSet<>();
+        try {
+            for (Map.Entry<File, byte[]> change : changes) {
+                File file = change.getKey();
+                dirs.add(file.getParentFile());
+                if (change.getValue() == null) {
+                    file.delete();
+                    continue;
+                }
+                file.getParentFile().mkdirs();
+                File temp = Files.createTempFile(Repository.GITLET_DIR.toPath(),
+                        TEMP_PREFIX, null).toFile();
+                writeForced(temp, change.getValue());
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        syncDirectories(dirs);
+    }
+
+    /** Writes CONTENTS to FILE, replacing what it held, and forces it to
+     *  disk. */
+    private static void writeForced(File file, byte[] contents) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(contents);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+            Trace.count("fsyncs", 1);
+        }
+    }
+
+    /** Forces DIRS to disk, so the files renamed into them and deleted
+     *  from them stay that way. */
+    private static void syncDirectories(Collection<File> dirs) {
+        for (File dir : dirs) {
+            try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+                Trace.count("fsyncs", 1);
+            } catch (IOException excp) {
+                // Some systems cannot open a directory, and make renames
+                // durable without it.
+            }
+        }
+    }
+
+    private static File journalFile() {
+        return join(Repository.GITLET_DIR, JOURNAL_FILE_NAME);
+    }
+
+    // Encode the changes as a magic number and version, their count, then
+    // each change: its kind, its path relative to .gitlet and its new
+    // contents. A CRC-32 of all of that comes last, so a journal that was
+    // cut short is never taken for a complete one.
+    private static byte[] encode(List<Map.Entry<File, byte[]>> changes) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(changes.size());
+            String root = Repository.GITLET_DIR.getAbsolutePath() + File.separator;
+            for (Map.Entry<File, byte[]> change : changes) {
+                String path = change.getKey().getPath();
+                if (!path.startsWith(root)) {
+                    throw error("Journaled file %s is outside .gitlet.", path);
+                }
+                out.writeByte(change.getValue() == null ? DELETE : WRITE);
+                writeString(out, path.substring(root.length()));
+                if (change.getValue() != null) {
+                    out.writeInt(change.getValue().length);
+                    out.write(change.getValue());
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw error("Internal error encoding journal.");
+        }
+    }
+
+    /** Returns the changes of the journal DATA, or null if it is not a
+     *  complete journal. */
+    private static List<Map.Entry<File, byte[]>> decode(byte[] data) {
+        if (data.length < Long.BYTES) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - Long.BYTES);
+        if (ByteBuffer.wrap(data, data.length - Long.BYTES, Long.BYTES).getLong()
+                != crc.getValue()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != JOURNAL_MAGIC || in.readUnsignedByte() > FORMAT_VERSION) {
+                return null;
+            }
+            int count = in.readInt();
+            List<Map.Entry<File, byte[]>> changes = new ArrayList<>();
+            for (int i = 0; i < count; i += 1) {
+                int kind = in.readUnsignedByte();
+                File file = join(Repository.GITLET_DIR, readString(in));
+                byte[] contents = null;
+                if (kind == WRITE) {
+                    contents = new byte[in.readInt()];
+                    in.readFully(contents);
+                }
+                changes.add(new AbstractMap.SimpleEntry<>(file, contents));
+            }
+            return changes;
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/** Keeps gitlet processes working on the same repository from getting in
+ *  each other's way.
+ *
+ *  Each resource of a repository, like HEAD, one branch or the stage, has
+ *  a lock file under .gitlet/locks, locked with FileChannel.lock: shared by
+ *  commands that only read the resource, exclusive by those that change
+ *  it. Commands that only read run side by side; commands that change the
+ *  same resource run one after the other, each seeing what the one before
+ *  it did.
+ *
+ *  A command takes the locks of the resources it uses before it starts and
+ *  holds them until it ends, so what it reads is not changed under it.
+ *  Locks are always taken in the order of RANKS, and then by name, which
+ *  keeps two commands from each waiting for a lock the other holds. The
+ *  journal and the caches are locked last, and only for as long as they
+ *  are written.
+ */
+public class Locks {
+
+    /** The directory of the lock files, in the .gitlet directory. */
+    private static final String LOCKS_DIR_NAME = "locks";
+
+    /** Resources. Branches are named by branch. */
+    static final String HEAD = "HEAD";
+    static final String REMOTES = "remotes";
+    /** The stage, with the stat cache. */
+    static final String STAGE = "stage";
+    /** The object stores, locked exclusively by gc only. */
+    static final String OBJECTS = "objects";
+    static final String JOURNAL = "journal";
+    /** The commit graph and the message index. */
+    static final String CACHES = "caches";
+    /** Prefix of the names of branch resources. */
+    private static final String BRANCH_PREFIX = "branch-";
+    /** Prefix of the names of transfer pack resources. */
+    private static final String TRANSFER_PREFIX = "transfer-";
+
+    /** The order locks are taken in, by resource, branches after HEAD. */
+    private static final String[] RANKS = {HEAD, BRANCH_PREFIX, REMOTES, STAGE, OBJECTS, JOURNAL,
+                                           CACHES};
+
+    /** The locks held by the current command, by resource. */
+    private static final Map<String, Held> held = new LinkedHashMap<>();
+
+    /** Returns the resource of the branch BRANCHNAME. */
+    static String branch(String branchName) {
+        return BRANCH_PREFIX + branchName.replace("/", "_");
+    }
+
+    /** Returns the resource of the transfer pack receiving the commit
+     *  TIPID. Packs share sixteen resources, by the first digit of the
+     *  commit, so lock files do not pile up. A transfer pack is locked with
+     *  hold for as long as it is written and unpacked, and no branch is
+     *  locked meanwhile. */
+    static String transfer(String tipID) {
+        return TRANSFER_PREFIX + tipID.charAt(0);
+    }
+
+    /** Locks each of RESOURCES of the current repository for the rest of
+     *  the command, exclusively if it maps to true, waiting for other
+     *  processes as needed. Resources already locked by this command are
+     *  skipped; a resource already locked shared cannot be locked
+     *  exclusively. */
+    static synchronized void lock(Map<String, Boolean> resources) {
+        if (!Repository.GITLET_DIR.isDirectory()) {
+            return;
+        }
+        List<String> order = new ArrayList<>(resources.keySet());
+        order.sort((a, b) -> rank(a) != rank(b) ? rank(a) - rank(b) : a.compareTo(b));
+        for (String resource : order) {
+            boolean exclusive = resources.get(resource);
+            Held lock = held.get(resource);
+            if (lock != null) {
+                if (exclusive && lock.lock.isShared()) {
+                    throw error("Lock on %s cannot be made exclusive.", resource);
+                }
+                continue;
+            }
+            held.put(resource, hold(Repository.GITLET_DIR, resource, exclusive));
+        }
+    }
+
+    /** Locks every resource of the current repository exclusively, for
+     *  a session that runs many commands and saves them at the end. A
+     *  branch the session creates is locked when it is created, out of
+     *  order; no other command can be using a branch that did not exist. */
+    static synchronized void lockAll() {
+        Map<String, Boolean> resources = new LinkedHashMap<>();
+        for (String resource : new String[] {HEAD, REMOTES, STAGE, OBJECTS}) {
+            resources.put(resource, true);
+        }
+        if (Repository.HEADS_DIR.isDirectory()) {
+            for (String branchName : Journal.plainFilenamesIn(Repository.HEADS_DIR)) {
+                resources.put(branch(branchName), true);
+            }
+        }
+        lock(resources);
+    }
+
+    /** Releases the locks of the current command. */
+    static synchronized void releaseAll() {
+        for (Held lock : held.values()) {
+            lock.close();
+        }
+        held.clear();
+    }
+
+    /** Locks RESOURCE of the repository in GITLETDIR, exclusively if
+     *  EXCLUSIVE, until the returned lock is closed. */
+    static Held hold(File gitletDir, String resource, boolean exclusive) {
+        File locksDir = join(gitletDir, LOCKS_DIR_NAME);
+        locksDir.mkdir();
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(join(locksDir, resource).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Held(channel, channel.lock(0, Long.MAX_VALUE, !exclusive));
+        } catch (IOException excp) {
+            closeQuietly(channel);
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static int rank(String resource) {
+        for (int i = 0; i < RANKS.length; i += 1) {
+            if (resource.equals(RANKS[i])
+                    || RANKS[i].equals(BRANCH_PREFIX) && resource.startsWith(BRANCH_PREFIX)) {
+                return i;
+            }
+        }
+        throw error("Unknown lock %s.", resource);
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException excp) {
+            // Closing releases the lock; nothing is left to undo.
+        }
+    }
+
+    /** A lock on one resource, released by close. */
+    static class Held implements AutoCloseable {
+        private final FileChannel channel;
+        private final FileLock lock;
+
+        private Held(FileChannel channel, FileLock lock) {
+            this.channel = channel;
+            this.lock = lock;
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(channel);
+        }
+    }
+}
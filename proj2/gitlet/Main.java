@@ -1,8 +1,15 @@
 package gitlet;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import static gitlet.Repository.*;
+import static gitlet.Utils.*;
 
 /** Driver class for Gitlet, a subset of the Git version-control system.
  *  @author George Yuan
@@ -11,12 +18,68 @@ public class Main {
 
     /** Usage: java gitlet.Main ARGS, where ARGS contains
      *  <COMMAND> <OPERAND1> <OPERAND2> ... 
+     *  or: java gitlet.Main --server [SOCKET], to run commands sent by
+     *  gitlet-client in this process, see Server;
+     *  or: java gitlet.Main --batch, to run the commands on standard
+     *  input, one per line, see GitletSession.
      */
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            if (args.length > 1) {
+                System.out.println("Incorrect operands.");
+                return;
+            }
+            GitletSession.runScript(new InputStreamReader(System.in, StandardCharsets.UTF_8),
+                    System.out);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--server")) {
+            if (args.length > 2) {
+                System.out.println("Incorrect operands.");
+                return;
+            }
+            Server.serve(args.length == 2 ? new File(args[1]) : Server.defaultSocket());
+            return;
+        }
+        try {
+            run(args);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        }
+    }
+
+    /** Runs the command in ARGS in Repository.CWD. A command that fails
+     *  throws a GitletException with the message to show, before anything
+     *  it changed is saved. */
+    static void run(String[] args) {
+        Trace.start(args);
+        try {
+            execute(args);
+            finish();
+        } finally {
+            Trace.report();
+        }
+    }
+
+    /** Runs the command in ARGS, as run does, but leaves what it changed in
+     *  memory, to be seen by the commands after it and saved by finish. */
+    static void execute(String[] args) {
         if (args.length == 0) {
-            System.out.println("Please enter a command.");
-            System.exit(0);
+            throw error("Please enter a command.");
+        }
+        if (Repository.GITLET_DIR.isDirectory()) {
+            try (Trace.Phase phase = Trace.phase("recover and lock")) {
+                Journal.recover();
+                lockResources(args);
+            }
+        }
+        try (Trace.Phase phase = Trace.phase(args[0])) {
+            dispatch(args);
         }
+    }
+
+    // Run the command in ARGS once its resources are locked.
+    private static void dispatch(String[] args) {
         Repository repository = new Repository();
         String firstArg = args[0];
         switch(firstArg) {
@@ -25,8 +88,8 @@ public class Main {
                 init();
                 break;
             case "add":
-                validateNumAndFormatArgs(args, 2);
-                add(args[1]);
+                validateMinNumAndFormatArgs(args, 2);
+                add(Arrays.copyOfRange(args, 1, args.length));
                 break;
             case "commit":
                 validateNumAndFormatArgs(args, 2);
@@ -37,16 +100,33 @@ public class Main {
                 remove(args[1]);
                 break;
             case "log":
+                if (args.length == 3 && args[1].equals("--")) {
+                    validateNumAndFormatArgs(args, 3);
+                    log(args[2]);
+                    break;
+                }
                 validateNumAndFormatArgs(args, 1);
                 log();
                 break;
+            case "diff":
+                if (args.length > 3) {
+                    validateNumAndFormatArgs(args, 3);
+                }
+                validateMinNumAndFormatArgs(args, 1);
+                diff(Arrays.copyOfRange(args, 1, args.length));
+                break;
             case "global-log":
                 validateNumAndFormatArgs(args, 1);
                 globalLog();
                 break;
             case "find":
-                validateNumAndFormatArgs(args, 2);
-                find(args[1]);
+                if (args.length == 3) {
+                    validateNumAndFormatArgs(args, 3);
+                    find(args[1], args[2]);
+                } else {
+                    validateNumAndFormatArgs(args, 2);
+                    find(null, args[1]);
+                }
                 break;
             case "status":
                 validateNumAndFormatArgs(args, 1);
@@ -71,6 +151,10 @@ public class Main {
                 validateNumAndFormatArgs(args, 2);
                 merge(args[1]);
                 break;
+            case "gc":
+                validateNumAndFormatArgs(args, 1);
+                gc();
+                break;
             case "add-remote":
                 validateNumAndFormatArgs(args, 3);
                 addRemote(args[1], args[2]);
@@ -87,43 +171,148 @@ public class Main {
                 validateNumAndFormatArgs(args, 3);
                 fetchRemote(args[1], args[2]);
                 break;
+            case "serve":
+                if (args.length > 2) {
+                    validateNumAndFormatArgs(args, 2);
+                }
+                serve(args.length == 2 ? args[1] : null);
+                break;
             case "pull":
                 validateNumAndFormatArgs(args, 3);
                 pullRemote(args[1], args[2]);
                 break;
             default:
-                System.out.println("No command with that name exists.");
-                System.exit(0);
+                throw error("No command with that name exists.");
         }
     }
 
+    /** Saves what the commands executed so far changed, and releases their
+     *  locks. */
+    static void finish() {
+        try (Trace.Phase phase = Trace.phase("save stage")) {
+            StagingArea.saveIfChanged();
+            StatCache.saveIfChanged();
+        }
+        try (Trace.Phase phase = Trace.phase("commit journal")) {
+            Journal.commit();
+        }
+        try (Trace.Phase phase = Trace.phase("save caches")) {
+            CommitGraph.saveIfChanged();
+            MessageIndex.saveIfChanged();
+            ChangedPaths.saveIfChanged();
+        }
+        Locks.releaseAll();
+    }
+
+    /** Forgets what the commands run so far loaded and did not save, so the
+     *  next command run in this process starts afresh. */
+    static void discardState() {
+        Locks.releaseAll();
+        Journal.discard();
+        StagingArea.reset();
+        StatCache.reset();
+        MessageIndex.reset();
+        ChangedPaths.reset();
+    }
+
+    // Lock what the command in ARGS reads, shared, and what it changes,
+    // exclusively. HEAD is locked first, so the current branch can be read.
+    private static void lockResources(String[] args) {
+        String command = args[0];
+        boolean switchesBranch = command.equals("checkout") && args.length == 2;
+        Map<String, Boolean> resources = new HashMap<>();
+        switch (command) {
+            case "add": case "rm": case "commit": case "log": case "diff": case "status":
+            case "checkout": case "branch": case "rm-branch": case "reset": case "merge":
+            case "push": case "pull":
+                resources.put(Locks.HEAD, switchesBranch);
+                Locks.lock(resources);
+                break;
+            default:
+                break;
+        }
+
+        boolean changesCurrent = command.equals("commit") || command.equals("reset")
+                || command.equals("merge") || command.equals("pull");
+        if (resources.containsKey(Locks.HEAD)) {
+            resources.put(Locks.branch(Branch.getCurrentBranchName()), changesCurrent);
+        }
+        switch (command) {
+            case "add": case "rm": case "commit": case "reset":
+                resources.put(Locks.STAGE, true);
+                break;
+            case "checkout":
+                resources.put(Locks.STAGE, switchesBranch);
+                if (switchesBranch) {
+                    resources.putIfAbsent(Locks.branch(args[1]), false);
+                }
+                break;
+            case "merge":
+                resources.put(Locks.STAGE, true);
+                resources.putIfAbsent(Locks.branch(args[1]), false);
+                break;
+            case "diff": case "status":
+                resources.put(Locks.STAGE, false);
+                break;
+            case "branch": case "rm-branch":
+                if (args.length == 2) {
+                    resources.put(Locks.branch(args[1]), true);
+                }
+                break;
+            case "add-remote": case "rm-remote":
+                resources.put(Locks.REMOTES, true);
+                break;
+            case "push":
+                resources.put(Locks.REMOTES, false);
+                break;
+            case "fetch": case "pull":
+                resources.put(Locks.REMOTES, false);
+                if (args.length == 3) {
+                    resources.put(Locks.branch(args[1] + "_" + args[2]), true);
+                }
+                if (command.equals("pull")) {
+                    resources.put(Locks.STAGE, true);
+                }
+                break;
+            default:
+                break;
+        }
+        if (!command.equals("init") && !command.equals("serve")) {
+            resources.put(Locks.OBJECTS, command.equals("gc"));
+        }
+        Locks.lock(resources);
+    }
+
     private static void validateNumAndFormatArgs(String[] args, int argsNumber) {
         if (args.length != argsNumber) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw error("Incorrect operands.");
         }
         if (!args[0].equals("init") && !Repository.GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw error("Not in an initialized Gitlet directory.");
+        }
+    }
+
+    // Like validateNumAndFormatArgs, for commands that take any number of
+    // operands from MINARGSNUMBER - 1 on.
+    private static void validateMinNumAndFormatArgs(String[] args, int minArgsNumber) {
+        if (args.length < minArgsNumber) {
+            throw error("Incorrect operands.");
         }
+        validateNumAndFormatArgs(Arrays.copyOf(args, minArgsNumber), minArgsNumber);
     }
 
     private static void validateCheckOutArgs(String[] args) {
         if (!(args.length == 2 || args.length == 3 || args.length == 4)) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw error("Incorrect operands.");
         }
         if (!Repository.GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw error("Not in an initialized Gitlet directory.");
         }
         if (args.length == 3 && !args[1].equals("--")) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw error("Incorrect operands.");
         }
         if (args.length == 4 && !args[2].equals("--")) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw error("Incorrect operands.");
         }
     }
 
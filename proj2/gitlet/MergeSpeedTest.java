@@ -0,0 +1,81 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/** Measures the line-by-line three-way merge on synthetic divergent
+ *  histories: for each file, both sides edit, insert and delete lines at
+ *  random, mostly in different places, and a few edits overlap.
+ *  Usage: java gitlet.MergeSpeedTest [FILES] [LINES] [EDITS]
+ */
+public class MergeSpeedTest {
+
+    public static void main(String[] args) throws IOException {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int lines = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int edits = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        Random random = new Random(42);
+        byte[][][] versions = new byte[files][][];
+        long totalBytes = 0;
+        for (int i = 0; i < files; i += 1) {
+            String[] base = new String[lines];
+            for (int j = 0; j < lines; j += 1) {
+                base[j] = "file " + i + " line " + j + " " + random.nextInt() + "\n";
+            }
+            versions[i] = new byte[][] {
+                join(base), join(edit(base, edits, "current", random)),
+                join(edit(base, edits, "other", random))
+            };
+            totalBytes += versions[i][0].length;
+        }
+        System.out.printf("%d files of %d lines, %d edits per side%n", files, lines, edits);
+
+        // Merge everything once before timing, so the JIT is warmed up.
+        for (int round = 0; round < 2; round += 1) {
+            int conflicts = 0;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long start = System.nanoTime();
+            for (byte[][] version : versions) {
+                out.reset();
+                if (Diff.merge(version[0], version[1], version[2], out)) {
+                    conflicts += 1;
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (round == 1) {
+                System.out.printf("%.3f s, %.0f files/s, %.1f MB/s, %d files with conflicts%n",
+                        seconds, files / seconds, totalBytes / seconds / 1e6, conflicts);
+            }
+        }
+    }
+
+    /** Returns a copy of LINES with EDITS random lines replaced, inserted
+     *  or deleted. */
+    private static String[] edit(String[] lines, int edits, String side, Random random) {
+        List<String> result = new ArrayList<>(Arrays.asList(lines));
+        for (int i = 0; i < edits && !result.isEmpty(); i += 1) {
+            int pos = random.nextInt(result.size());
+            switch (random.nextInt(3)) {
+                case 0:
+                    result.set(pos, side + " changed " + i + "\n");
+                    break;
+                case 1:
+                    result.add(pos, side + " inserted " + i + "\n");
+                    break;
+                default:
+                    result.remove(pos);
+            }
+        }
+        return result.toArray(new String[0]);
+    }
+
+    private static byte[] join(String[] lines) {
+        return String.join("", lines).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,544 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static gitlet.Utils.*;
+
+/** The message of every commit, by commit ID, so find does not have to
+ *  read and decode each commit.
+ *
+ *  .gitlet/message-index is a header followed by one record per commit:
+ *  its raw ID and its message. Records are only ever appended, so a new
+ *  commit costs one small write. Each message is split into lower-case
+ *  words, and an inverted index from each word to the commits using it
+ *  is kept in .gitlet/message-index-words for the records it covers;
+ *  only the messages of later records are split when the index is
+ *  loaded. The words file is written again once a good share of the
+ *  records are past it. Exact and word queries only look at the commits
+ *  the inverted index names, and --contains only at the commits using a
+ *  word its text could be part of.
+ *
+ *  Every command that writes a commit records it: commit, and push and
+ *  fetch for the commits they copy, so the store is never listed to find
+ *  new commits. It is listed once, when there is no index yet or the
+ *  index was written by a version that did not record copied commits.
+ */
+public class MessageIndex {
+
+    /** The file the index is saved in. */
+    private static final String INDEX_FILE_NAME = "message-index";
+    /** Magic number at the start of the index file. */
+    private static final int INDEX_MAGIC = 0x474D5347; // "GMSG"
+    /** Version of the index format written by this class. Version 1 did
+     *  not record commits copied by push and fetch. */
+    private static final int FORMAT_VERSION = 2;
+    /** The file the inverted index is saved in. */
+    private static final String WORDS_FILE_NAME = "message-index-words";
+    /** Magic number at the start of the words file. */
+    private static final int WORDS_MAGIC = 0x474D5744; // "GMWD"
+    /** The fewest records past the words file that have it written again;
+     *  beyond that, an eighth of the records it covers. */
+    private static final int MIN_WORDS_BEHIND = 256;
+
+    /** The index of the current command, loaded on first use. */
+    private static MessageIndex messageIndex;
+    /** Commits made during the current command, and their messages, to be
+     *  appended to the index file without loading it. */
+    private static final List<String> pendingIDs = new ArrayList<>();
+    private static final List<String> pendingMessages = new ArrayList<>();
+
+    /** The indexed commit IDs, and their messages, in the order added. */
+    private final List<String> ids = new ArrayList<>();
+    private final List<String> messages = new ArrayList<>();
+    /** The indexed commit IDs as a set. */
+    private final Set<String> indexedIDs = new HashSet<>();
+    /** The positions in IDS of the commits whose message uses each word. */
+    private final Map<String, List<Integer>> postings = new HashMap<>();
+    /** The number of commits already in the index file. */
+    private int savedCount;
+    /** The number of commits whose words are in the words file. */
+    private int wordsCount;
+    /** True if the index file is unreadable and must be written anew. */
+    private boolean rewrite;
+    /** True if every commit in the store has a record. */
+    private boolean complete = true;
+
+    private MessageIndex() {
+        File indexFile = indexFile(Repository.GITLET_DIR);
+        if (!indexFile.isFile()) {
+            rewrite = true;
+            complete = false;
+            return;
+        }
+        byte[] contents;
+        byte[] words = null;
+        // Not while another command appends to it.
+        try (Locks.Held lock = Locks.hold(Repository.GITLET_DIR, Locks.CACHES, false)) {
+            contents = readContents(indexFile);
+            if (wordsFile().isFile()) {
+                words = readContents(wordsFile());
+            }
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+        try {
+            int version = in.readInt() == INDEX_MAGIC ? in.readUnsignedByte() : 0;
+            if (version < 1 || version > FORMAT_VERSION) {
+                rewrite = true;
+                complete = false;
+                return;
+            }
+            // Version 1 missed the commits copied by push and fetch.
+            complete = version == FORMAT_VERSION;
+            byte[] raw = new byte[ObjectStore.RAW_ID_LENGTH];
+            while (in.available() > 0) {
+                in.readFully(raw);
+                String message = readString(in);
+                String commitID = ObjectStore.fromRawID(raw);
+                if (indexedIDs.add(commitID)) {
+                    ids.add(commitID);
+                    messages.add(message);
+                }
+            }
+        } catch (IOException excp) {
+            // A record cut short by an interrupted command; keep the
+            // complete ones and write the file again.
+            rewrite = true;
+            complete = false;
+        }
+        savedCount = ids.size();
+        if (!complete) {
+            rewrite = true;
+        }
+        if (words != null) {
+            loadWords(words);
+        }
+        for (int pos = wordsCount; pos < ids.size(); pos += 1) {
+            addWords(pos);
+        }
+    }
+
+    /** Loads the inverted index saved in WORDS, if it covers a prefix of
+     *  the records read. */
+    private void loadWords(byte[] words) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(words));
+        try {
+            if (in.readInt() != WORDS_MAGIC || in.readUnsignedByte() != FORMAT_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            // The last commit covered, to check the records were not
+            // written again in another order.
+            if (count > ids.size()
+                    || count > 0 && !readID(in).equals(ids.get(count - 1))) {
+                return;
+            }
+            Map<String, List<Integer>> saved = new HashMap<>();
+            for (int wordCount = in.readInt(); wordCount > 0; wordCount -= 1) {
+                String word = readString(in);
+                int size = in.readInt();
+                List<Integer> posting = new ArrayList<>(size);
+                for (int pos = 0; size > 0; size -= 1) {
+                    pos += in.readInt();
+                    posting.add(pos);
+                }
+                saved.put(word, posting);
+            }
+            postings.putAll(saved);
+            wordsCount = count;
+        } catch (IOException excp) {
+            // A words file cut short; the messages are split again.
+        }
+    }
+
+    public static MessageIndex getMessageIndex() {
+        if (messageIndex == null) {
+            saveIfChanged();
+            messageIndex = new MessageIndex();
+        }
+        return messageIndex;
+    }
+
+    private static File indexFile(File gitletDir) {
+        return join(gitletDir, INDEX_FILE_NAME);
+    }
+
+    private static File wordsFile() {
+        return join(Repository.GITLET_DIR, WORDS_FILE_NAME);
+    }
+
+    // Record the message of a commit just made. The index file is not
+    // read; the new record is appended to it at the end of the command.
+    public static void addCommit(String commitID, String message) {
+        if (messageIndex != null) {
+            if (!messageIndex.indexedIDs.contains(commitID)) {
+                messageIndex.index(commitID, message);
+            }
+        } else {
+            pendingIDs.add(commitID);
+            pendingMessages.add(message);
+        }
+    }
+
+    // Record the messages of the commits COMMITIDS that push or fetch
+    // copied into the repository in GITLETDIR. The index of the current
+    // command takes them if it is loaded; otherwise they are appended to
+    // the index file at once.
+    static void addCopied(File gitletDir, List<String> commitIDs, List<String> commitMessages) {
+        if (commitIDs.isEmpty()) {
+            return;
+        }
+        if (messageIndex != null
+                && gitletDir.getAbsoluteFile().equals(Repository.GITLET_DIR.getAbsoluteFile())) {
+            for (int i = 0; i < commitIDs.size(); i += 1) {
+                addCommit(commitIDs.get(i), commitMessages.get(i));
+            }
+            return;
+        }
+        try (Locks.Held lock = Locks.hold(gitletDir, Locks.CACHES, true)) {
+            if (indexFile(gitletDir).isFile()) {
+                append(gitletDir, commitIDs, commitMessages, 0);
+            }
+        }
+    }
+
+    // Save the commits added to the index during the current command.
+    public static void saveIfChanged() {
+        if (!Repository.GITLET_DIR.isDirectory()) {
+            return;
+        }
+        if (messageIndex != null) {
+            if (messageIndex.rewrite || messageIndex.savedCount < messageIndex.ids.size()
+                    || messageIndex.wordsBehind()) {
+                try (Locks.Held lock = Locks.hold(Repository.GITLET_DIR, Locks.CACHES, true)) {
+                    messageIndex.save();
+                }
+            }
+        } else if (!pendingIDs.isEmpty()) {
+            // Without an index file there is nothing to append to; the
+            // index is built from all commits when it is next loaded.
+            try (Locks.Held lock = Locks.hold(Repository.GITLET_DIR, Locks.CACHES, true)) {
+                if (indexFile(Repository.GITLET_DIR).isFile()) {
+                    append(Repository.GITLET_DIR, pendingIDs, pendingMessages, 0);
+                }
+            }
+            pendingIDs.clear();
+            pendingMessages.clear();
+        }
+    }
+
+    // Forget the index and the commits of the current command, so the next
+    // command run in this process reads the index again.
+    public static void reset() {
+        messageIndex = null;
+        pendingIDs.clear();
+        pendingMessages.clear();
+    }
+
+    /** Adds the commits of the repository that are not indexed yet, if
+     *  the index may be missing some. Only their IDs are listed; just the
+     *  missing commits are read, in parallel. */
+    private void addMissingCommits() {
+        if (complete) {
+            return;
+        }
+        complete = true;
+        List<String> missing = new ArrayList<>();
+        for (String commitID : Repository.COMMIT_STORE.ids()) {
+            if (!indexedIDs.contains(commitID)) {
+                missing.add(commitID);
+            }
+        }
+        List<String> missingMessages = missing.parallelStream()
+                .map(commitID -> Commit.findCommit(commitID).getMessage())
+                .collect(Collectors.toList());
+        for (int i = 0; i < missing.size(); i += 1) {
+            index(missing.get(i), missingMessages.get(i));
+        }
+    }
+
+    private void index(String commitID, String message) {
+        ids.add(commitID);
+        messages.add(message);
+        indexedIDs.add(commitID);
+        addWords(ids.size() - 1);
+    }
+
+    private void addWords(int pos) {
+        for (String word : words(messages.get(pos))) {
+            postings.computeIfAbsent(word, w -> new ArrayList<>()).add(pos);
+        }
+    }
+
+    /** Returns the distinct lower-case words of TEXT: runs of letters and
+     *  digits. */
+    static Set<String> words(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        for (int[] run : wordRuns(text)) {
+            words.add(fold(text.substring(run[0], run[1])));
+        }
+        return words;
+    }
+
+    /** Returns the start and end of each run of letters and digits in
+     *  TEXT. */
+    private static List<int[]> wordRuns(String text) {
+        List<int[]> runs = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i += 1) {
+            boolean wordChar = i < text.length()
+                    && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                runs.add(new int[] {start, i});
+                start = -1;
+            }
+        }
+        return runs;
+    }
+
+    /** Returns WORD in lower case. A final sigma is folded to a plain one,
+     *  so part of a word folds to part of the folded word. */
+    private static String fold(String word) {
+        return word.toLowerCase(Locale.ROOT).replace('\u03c2', '\u03c3');
+    }
+
+    /** Returns the sorted IDs of the commits whose message is MESSAGE. */
+    public List<String> findExact(String message) {
+        addMissingCommits();
+        TreeSet<String> result = new TreeSet<>();
+        for (int pos : candidates(words(message))) {
+            if (messages.get(pos).equals(message)) {
+                result.add(ids.get(pos));
+            }
+        }
+        return stored(result);
+    }
+
+    /** Returns the sorted IDs of the commits whose message contains every
+     *  word of QUERY, ignoring case. */
+    public List<String> findWords(String query) {
+        addMissingCommits();
+        Set<String> queryWords = words(query);
+        TreeSet<String> result = new TreeSet<>();
+        if (queryWords.isEmpty()) {
+            return new ArrayList<>(result);
+        }
+        for (int pos : candidates(queryWords)) {
+            result.add(ids.get(pos));
+        }
+        return stored(result);
+    }
+
+    /** Returns the sorted IDs of the commits whose message contains TEXT.
+     *  A message containing TEXT has each word of TEXT as a word, except
+     *  that the first may be the end of a word and the last the start of
+     *  one, so only the commits whose words fit are searched. */
+    public List<String> findContaining(String text) {
+        addMissingCommits();
+        BitSet searched = new BitSet(ids.size());
+        searched.set(0, ids.size());
+        for (int[] run : wordRuns(text)) {
+            String part = fold(text.substring(run[0], run[1]));
+            boolean first = run[0] == 0;
+            boolean last = run[1] == text.length();
+            BitSet fits = new BitSet(ids.size());
+            if (!first && !last) {
+                for (int pos : postings.getOrDefault(part, new ArrayList<>())) {
+                    fits.set(pos);
+                }
+            } else {
+                for (Map.Entry<String, List<Integer>> posting : postings.entrySet()) {
+                    String word = posting.getKey();
+                    if (first && last ? word.contains(part)
+                            : first ? word.endsWith(part) : word.startsWith(part)) {
+                        for (int pos : posting.getValue()) {
+                            fits.set(pos);
+                        }
+                    }
+                }
+            }
+            searched.and(fits);
+        }
+        TreeSet<String> result = new TreeSet<>();
+        for (int pos = searched.nextSetBit(0); pos >= 0; pos = searched.nextSetBit(pos + 1)) {
+            if (messages.get(pos).contains(text)) {
+                result.add(ids.get(pos));
+            }
+        }
+        return stored(result);
+    }
+
+    /** Returns the commits of COMMITIDS that are in the store. A push to a
+     *  repository in the same file system records the commits it copies
+     *  before copying them, so an interrupted push may leave a record of a
+     *  commit that never arrived. */
+    private static List<String> stored(Set<String> commitIDs) {
+        List<String> result = new ArrayList<>();
+        for (String commitID : commitIDs) {
+            if (Repository.COMMIT_STORE.contains(commitID)) {
+                result.add(commitID);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the positions of the commits whose message uses all WORDS,
+     *  or of every commit if WORDS is empty. */
+    private List<Integer> candidates(Set<String> words) {
+        List<Integer> result = null;
+        for (String word : words) {
+            List<Integer> posting = postings.getOrDefault(word, new ArrayList<>());
+            if (result == null) {
+                result = posting;
+            } else {
+                result = intersect(result, posting);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        if (result == null) {
+            result = new ArrayList<>();
+            for (int pos = 0; pos < ids.size(); pos += 1) {
+                result.add(pos);
+            }
+        }
+        return result;
+    }
+
+    /** Intersects two increasing lists of positions. */
+    private static List<Integer> intersect(List<Integer> a, List<Integer> b) {
+        List<Integer> result = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < a.size() && j < b.size()) {
+            int cmp = Integer.compare(a.get(i), b.get(j));
+            if (cmp == 0) {
+                result.add(a.get(i));
+                i += 1;
+                j += 1;
+            } else if (cmp < 0) {
+                i += 1;
+            } else {
+                j += 1;
+            }
+        }
+        return result;
+    }
+
+    /** Returns true if enough records are past the words file to write it
+     *  again. */
+    private boolean wordsBehind() {
+        return ids.size() - wordsCount >= Math.max(MIN_WORDS_BEHIND, wordsCount / 8);
+    }
+
+    /** Appends the records added since the index was loaded, or writes the
+     *  whole file if it could not be read, and then the words file if it
+     *  is behind. */
+    private void save() {
+        if (rewrite) {
+            // The file written claims every commit has a record.
+            addMissingCommits();
+            File temp = join(Repository.GITLET_DIR, INDEX_FILE_NAME + ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(temp)))) {
+                    out.writeInt(INDEX_MAGIC);
+                    out.writeByte(FORMAT_VERSION);
+                    writeRecords(out, ids, messages, 0);
+                }
+                Files.move(temp.toPath(), indexFile(Repository.GITLET_DIR).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        } else {
+            append(Repository.GITLET_DIR, ids, messages, savedCount);
+        }
+        savedCount = ids.size();
+        rewrite = false;
+        if (wordsBehind()) {
+            saveWords();
+        }
+    }
+
+    /** Writes the words file: the number of commits it covers, the last
+     *  of them, and each word with the differences between the positions
+     *  of the commits using it. */
+    private void saveWords() {
+        File temp = join(Repository.GITLET_DIR, WORDS_FILE_NAME + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(WORDS_MAGIC);
+                out.writeByte(FORMAT_VERSION);
+                out.writeInt(ids.size());
+                if (!ids.isEmpty()) {
+                    writeID(out, ids.get(ids.size() - 1));
+                }
+                out.writeInt(postings.size());
+                for (Map.Entry<String, List<Integer>> posting : postings.entrySet()) {
+                    writeString(out, posting.getKey());
+                    out.writeInt(posting.getValue().size());
+                    int last = 0;
+                    for (int pos : posting.getValue()) {
+                        out.writeInt(pos - last);
+                        last = pos;
+                    }
+                }
+            }
+            Files.move(temp.toPath(), wordsFile().toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        wordsCount = ids.size();
+    }
+
+    /** Appends the records of COMMITIDS from position FROM on to the index
+     *  file in GITLETDIR. They go out in a single write, so an interrupted
+     *  append leaves at most one partial record at the end. */
+    private static void append(File gitletDir, List<String> commitIDs,
+                               List<String> commitMessages, int from) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeRecords(new DataOutputStream(bytes), commitIDs, commitMessages, from);
+            try (FileOutputStream out = new FileOutputStream(indexFile(gitletDir), true)) {
+                out.write(bytes.toByteArray());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static void writeRecords(DataOutputStream out, List<String> commitIDs,
+                                     List<String> commitMessages, int from)
+            throws IOException {
+        for (int pos = from; pos < commitIDs.size(); pos += 1) {
+            writeID(out, commitIDs.get(pos));
+            writeString(out, commitMessages.get(pos));
+        }
+        out.flush();
+    }
+}
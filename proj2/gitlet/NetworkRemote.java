@@ -0,0 +1,228 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/** Push and fetch to a remote served by gitlet serve, named by a URL of
+ *  the form gitlet://HOST:PORT/PATH, where PATH is the remote's .gitlet
+ *  directory relative to the directory the daemon serves.
+ *
+ *  Each push or fetch is one connection. The client sends its request,
+ *  the two sides exchange the commits at the tips of the receiver's
+ *  branches, and the sender then streams every missing object, without
+ *  waiting for a reply per object, as one Deflater-compressed run of
+ *  transfer records. The compressed stream is always the last thing sent
+ *  in its direction, so the reader never has to find where it stops.
+ *
+ *  A request is the protocol magic and version, a command byte, the
+ *  remote path and the branch name; a push also names the commit pushed.
+ *  Replies start with a status byte, followed by an error message if the
+ *  status is ERROR.
+ */
+public class NetworkRemote {
+
+    /** The scheme of remote URLs. */
+    private static final String SCHEME = "gitlet";
+    /** The port used when a URL does not give one. */
+    static final int DEFAULT_PORT = 9418;
+    /** How long to wait for a connection, in milliseconds. */
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    /** Magic number at the start of a request. */
+    static final int PROTOCOL_MAGIC = 0x474E4554; // "GNET"
+    /** Version of the protocol spoken by this class. */
+    static final int PROTOCOL_VERSION = 1;
+    /** Commands. */
+    static final int FETCH = 1;
+    static final int PUSH = 2;
+    /** Status bytes of a reply, and of the client's answer to the state of
+     *  the remote branch before a push. */
+    static final int OK = 0;
+    static final int ERROR = 1;
+    static final int ABORT = 2;
+
+    /** Returns true if the remote path PATH is a gitlet:// URL. */
+    public static boolean isURL(String path) {
+        return path != null && path.startsWith(SCHEME + "://");
+    }
+
+    /** Copies the branch BRANCHNAME of the remote at URL and everything it
+     *  refers to into the current repository, and returns the ID of the
+     *  commit at its tip. */
+    public static String fetch(String url, String branchName) {
+        try (Socket socket = connect(url)) {
+            DataOutputStream out = output(socket);
+            DataInputStream in = input(socket);
+            writeRequest(out, FETCH, url, branchName);
+            out.flush();
+            readStatus(in);
+            String tipID = readID(in);
+
+            File packFile = Transfer.packFile(Repository.GITLET_DIR, tipID);
+            // A gitlet serve on this repository may be receiving the same
+            // commit into the same pack.
+            try (Locks.Held lock = Locks.hold(Repository.GITLET_DIR, Locks.transfer(tipID),
+                    true)) {
+                try (Transfer.PackWriter pack = new Transfer.PackWriter(packFile)) {
+                    writeIDs(out, localTips());
+                    writeIDs(out, pack.getReceived());
+                    out.flush();
+                    int wantedCount = in.readInt();
+                    Transfer.receive(new DataInputStream(new BufferedInputStream(
+                                    new InflaterInputStream(in))),
+                            pack, new Transfer.Progress("Receiving objects", wantedCount));
+                }
+                Transfer.unpack(packFile, new Transfer.Stores(Repository.GITLET_DIR));
+                packFile.delete();
+            }
+            return tipID;
+        } catch (IOException excp) {
+            throw failure("Remote connection failed: " + excp.getMessage());
+        }
+    }
+
+    /** Sets the branch BRANCHNAME of the remote at URL to the commit TIPID
+     *  of the current repository, copying the objects it needs first. */
+    public static void push(String url, String branchName, String tipID) {
+        try (Socket socket = connect(url)) {
+            DataOutputStream out = output(socket);
+            DataInputStream in = input(socket);
+            writeRequest(out, PUSH, url, branchName);
+            writeID(out, tipID);
+            out.flush();
+            readStatus(in);
+            String branchCommitID = in.readBoolean() ? readID(in) : null;
+            List<String> remoteTips = readIDs(in);
+            Set<String> received = new LinkedHashSet<>(readIDs(in));
+
+            if (branchCommitID != null
+                    && !CommitGraph.getCommitGraph().isAncestor(branchCommitID, tipID)) {
+                out.writeByte(ABORT);
+                out.flush();
+                throw failure("Please pull down remote changes before pushing.");
+            }
+            out.writeByte(OK);
+            Transfer.Stores from = new Transfer.Stores(Repository.GITLET_DIR);
+            Transfer.Advertised have = new Transfer.Advertised(tipID, remoteTips, from);
+            List<Transfer.ObjectRef> wanted = Transfer.negotiate(tipID, from, have);
+            out.writeInt(wanted.size());
+            out.flush();
+            DeflaterOutputStream deflater = compress(out);
+            DataOutputStream packOut = new DataOutputStream(new BufferedOutputStream(deflater));
+            Transfer.send(wanted, from, have, received, packOut,
+                    new Transfer.Progress("Sending objects", wanted.size()));
+            packOut.writeByte(Transfer.END);
+            packOut.flush();
+            deflater.finish();
+            out.flush();
+            readStatus(in);
+        } catch (IOException excp) {
+            throw failure("Remote connection failed: " + excp.getMessage());
+        }
+    }
+
+    /** Returns the IDs of the commits at the tips of the local branches. */
+    private static Set<String> localTips() {
+        Set<String> tips = new LinkedHashSet<>();
+        for (String branchName : Journal.plainFilenamesIn(Repository.HEADS_DIR)) {
+            tips.add(Journal.readContentsAsString(join(Repository.HEADS_DIR, branchName)));
+        }
+        return tips;
+    }
+
+    private static Socket connect(String url) throws IOException {
+        URI uri = parse(url);
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(uri.getHost(),
+                uri.getPort() < 0 ? DEFAULT_PORT : uri.getPort()), CONNECT_TIMEOUT);
+        return socket;
+    }
+
+    /** Returns URL parsed, or exits if it has no host or path. */
+    private static URI parse(String url) {
+        try {
+            URI uri = new URI(url);
+            if (uri.getHost() != null && uri.getPath() != null && !uri.getPath().isEmpty()) {
+                return uri;
+            }
+        } catch (URISyntaxException excp) {
+            // Reported below.
+        }
+        throw failure("Remote directory not found.");
+    }
+
+    /** Returns the remote path named by the URL. */
+    private static String path(String url) {
+        return parse(url).getPath().substring(1);
+    }
+
+    private static void writeRequest(DataOutputStream out, int command, String url,
+                                     String branchName) throws IOException {
+        out.writeInt(PROTOCOL_MAGIC);
+        out.writeByte(PROTOCOL_VERSION);
+        out.writeByte(command);
+        writeString(out, path(url));
+        writeString(out, branchName);
+    }
+
+    /** Reads the status byte of a reply, and exits with the message of an
+     *  error reply. */
+    private static void readStatus(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() != OK) {
+            throw failure(readString(in));
+        }
+    }
+
+    /** Returns the error that reports MESSAGE, which may come from the
+     *  remote, to the user. */
+    private static GitletException failure(String message) {
+        return new GitletException(message);
+    }
+
+    static DataOutputStream output(Socket socket) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    static DataInputStream input(Socket socket) throws IOException {
+        return new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    /** Returns a stream compressing what is written to OUT. */
+    static DeflaterOutputStream compress(DataOutputStream out) {
+        return new DeflaterOutputStream(out,
+                new Deflater(Deflater.BEST_SPEED), 1 << 16);
+    }
+
+    static void writeIDs(DataOutputStream out, Set<String> ids) throws IOException {
+        out.writeInt(ids.size());
+        for (String id : ids) {
+            writeID(out, id);
+        }
+    }
+
+    static List<String> readIDs(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i += 1) {
+            ids.add(readID(in));
+        }
+        return ids;
+    }
+}
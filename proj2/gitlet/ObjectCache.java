@@ -0,0 +1,96 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A bounded cache of objects read during one gitlet command, or during
+ *  the commands a gitlet server runs in one repository, keyed by object
+ *  ID. Objects are immutable once stored, so a cached copy never goes
+ *  stale. Each entry has a weight, roughly its size in bytes, and the
+ *  least recently used entries are evicted once the total weight exceeds
+ *  the capacity.
+ *
+ *  @param <T> the type of the cached objects
+ */
+public class ObjectCache<T> {
+
+    /** The name shown with the statistics of this cache. */
+    private final String name;
+    /** The largest total weight the cache holds. */
+    private final long capacity;
+    /** The cached entries, from least to most recently used. */
+    private final LinkedHashMap<String, Entry<T>> entries =
+            new LinkedHashMap<>(16, 0.75f, true);
+    /** The total weight of the cached entries. */
+    private long weight;
+    /** The number of lookups that found, or missed, their object. */
+    private long hits;
+    private long misses;
+
+    public ObjectCache(String name, long capacity) {
+        this.name = name;
+        this.capacity = capacity;
+    }
+
+    /** Returns the object ID, or null if it is not cached. */
+    public synchronized T get(String id) {
+        Entry<T> entry = entries.get(id);
+        if (entry == null) {
+            misses += 1;
+            Trace.count(name + " cache misses", 1);
+            return null;
+        }
+        hits += 1;
+        Trace.count(name + " cache hits", 1);
+        return entry.value;
+    }
+
+    /** Caches VALUE as the object ID, with the given WEIGHT. */
+    public synchronized void put(String id, T value, long weight) {
+        if (weight > capacity) {
+            return;
+        }
+        Entry<T> old = entries.put(id, new Entry<>(value, weight));
+        if (old != null) {
+            this.weight -= old.weight;
+        }
+        this.weight += weight;
+        Iterator<Map.Entry<String, Entry<T>>> eldest = entries.entrySet().iterator();
+        while (this.weight > capacity && eldest.hasNext()) {
+            this.weight -= eldest.next().getValue().weight;
+            eldest.remove();
+        }
+    }
+
+    /** Empties the cache. */
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s cache: %d hits, %d misses, %d entries, %d bytes",
+                name, hits, misses, entries.size(), weight);
+    }
+
+    /** A cached object with its weight. */
+    private static class Entry<T> {
+        private final T value;
+        private final long weight;
+
+        Entry(T value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,673 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** A content-addressed store for one kind of gitlet object.
+ *
+ *  New objects are written "loose", one file per object. Like git, the
+ *  first two hex digits of the ID name a subdirectory and the rest name
+ *  the file, so no directory grows past a small share of the objects and
+ *  an abbreviated ID only has to look in one of them. Older repositories
+ *  kept loose objects directly under the store directory; those are still
+ *  read. "gc" moves them into an append-only
+ *  pack file under DIR/pack, paired with a sorted index that maps each
+ *  object ID to the offset and length of its bytes in the pack. Indexes are
+ *  memory-mapped and searched with a binary search, so reading a packed
+ *  object costs one positioned read instead of an open() per object.
+ *
+ *  Objects are stored encoded by a Codec, compressed by default, after a
+ *  header naming the codec. read and transferTo decode them; copyTo and
+ *  packing move them still encoded.
+ */
+public class ObjectStore {
+
+    /** Name of the subdirectory holding pack files. */
+    private static final String PACK_DIR_NAME = "pack";
+    /** Magic number at the start of every pack file. */
+    private static final int PACK_MAGIC = 0x4750414B; // "GPAK"
+    /** Magic number at the start of every pack index. */
+    private static final int INDEX_MAGIC = 0x47494458; // "GIDX"
+    /** Version of the pack and index formats written by this class. */
+    private static final int FORMAT_VERSION = 1;
+    /** Size in bytes of a raw (binary) object ID. */
+    static final int RAW_ID_LENGTH = 20;
+    /** The digits of a hexadecimal ID. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    /** Size of the pack and index headers: magic, version, object count. */
+    private static final int HEADER_SIZE = 12;
+    /** Size of one index entry: raw ID, offset in the pack, length. */
+    private static final int INDEX_ENTRY_SIZE = RAW_ID_LENGTH + 8 + 4;
+    /** The number of leading hex digits that name a loose subdirectory. */
+    private static final int FANOUT_LENGTH = 2;
+
+    /** The directory holding the loose objects. */
+    private final File dir;
+    /** The directory holding the packs. */
+    private final File packDir;
+    /** The packs of this store, loaded lazily. */
+    private List<Pack> packs;
+    /** The number of objects, and of bytes, read from disk. */
+    private long objectsRead;
+    private long bytesRead;
+
+    public ObjectStore(File dir) {
+        this.dir = dir;
+        this.packDir = join(dir, PACK_DIR_NAME);
+    }
+
+    /** Returns true if the object ID is in this store. */
+    public boolean contains(String id) {
+        return findLoose(id) != null || findInPacks(id) != null;
+    }
+
+    /** Returns the bytes of the object ID, or null if it is not stored. */
+    public byte[] read(String id) {
+        byte[] stored = readStored(id);
+        return stored == null ? null : Codec.decodeObject(stored);
+    }
+
+    /** Returns the object ID as stored, with its header and encoded, or
+     *  null if it is not stored. */
+    private byte[] readStored(String id) {
+        File loose = findLoose(id);
+        byte[] data;
+        if (loose != null) {
+            data = readContents(loose);
+        } else {
+            Pack pack = findInPacks(id);
+            data = pack == null ? null : pack.read(id);
+        }
+        if (data != null) {
+            countRead(data.length);
+        }
+        return data;
+    }
+
+    private synchronized void countRead(long bytes) {
+        objectsRead += 1;
+        bytesRead += bytes;
+        Trace.count("objects read: " + dir.getName(), 1);
+        Trace.count("bytes read: " + dir.getName(), bytes);
+    }
+
+    public synchronized long getObjectsRead() {
+        return objectsRead;
+    }
+
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    /** Writes the bytes of the object ID from position OFFSET onward to
+     *  TARGET. An object stored as it is goes with FileChannel.transferTo,
+     *  so it is not copied through the heap; a compressed one is decoded
+     *  first. Returns false if the object is not stored. */
+    public boolean transferTo(String id, long offset, WritableByteChannel target) {
+        File loose = findLoose(id);
+        try {
+            if (loose != null) {
+                try (FileChannel channel = FileChannel.open(loose.toPath())) {
+                    transferObject(channel, 0, channel.size(), offset, target);
+                }
+                return true;
+            }
+            Pack pack = findInPacks(id);
+            return pack != null && pack.transferTo(id, offset, target);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Writes the bytes, from position OFFSET onward, of the object stored
+     *  as the LENGTH bytes at POSITION in SOURCE to TARGET. */
+    private static void transferObject(FileChannel source, long position, long length,
+                                       long offset, WritableByteChannel target)
+            throws IOException {
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(length, Codec.HEADER_SIZE));
+        readFully(source, position, head);
+        int rawOffset = Codec.rawOffset(head.array(), length);
+        if (rawOffset >= 0) {
+            transferFully(source, position + rawOffset + offset,
+                    length - rawOffset - offset, target);
+            return;
+        }
+        ByteBuffer stored = ByteBuffer.allocate((int) length);
+        readFully(source, position, stored);
+        byte[] data = Codec.decodeObject(stored.array());
+        ByteBuffer rest = ByteBuffer.wrap(data, (int) offset, data.length - (int) offset);
+        while (rest.hasRemaining()) {
+            target.write(rest);
+        }
+    }
+
+    private static void readFully(FileChannel source, long position, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of object file");
+            }
+        }
+    }
+
+    /** Copies COUNT bytes at POSITION in SOURCE to TARGET. */
+    private static void transferFully(FileChannel source, long position, long count,
+                                      WritableByteChannel target) throws IOException {
+        while (count > 0) {
+            long n = source.transferTo(position, count, target);
+            if (n <= 0) {
+                throw new IOException("unexpected end of object file");
+            }
+            position += n;
+            count -= n;
+        }
+    }
+
+    /** Stores the object ID of this store in TARGET too, unless TARGET
+     *  has it, without reading it into memory. Objects never change once
+     *  written, so a loose object is hard-linked when both stores are in
+     *  the same file system. Otherwise it is copied with Files.copy, and a
+     *  packed object is copied out of its pack as it is stored, header and
+     *  encoding included. Returns false if the object is not stored here. */
+    public boolean copyTo(String id, ObjectStore target) {
+        if (target.contains(id)) {
+            return true;
+        }
+        File loose = findLoose(id);
+        File targetFile = target.looseFile(id);
+        targetFile.getParentFile().mkdirs();
+        try {
+            if (loose != null) {
+                try {
+                    Files.createLink(targetFile.toPath(), loose.toPath());
+                    Journal.recordObject(targetFile);
+                    Trace.count("objects written: " + target.dir.getName(), 1);
+                    return true;
+                } catch (FileAlreadyExistsException excp) {
+                    return true;
+                } catch (IOException | UnsupportedOperationException excp) {
+                    // Another file system, or no hard links; copy instead.
+                }
+            }
+            Path temp = Files.createTempFile(target.dir.toPath(), "tmp-", null);
+            try {
+                if (loose != null) {
+                    Files.copy(loose.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Pack pack = findInPacks(id);
+                    try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                        if (pack == null || !pack.copyStored(id, out)) {
+                            return false;
+                        }
+                    }
+                }
+                Files.move(temp, targetFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                Journal.recordObject(targetFile);
+                Trace.count("objects written: " + target.dir.getName(), 1);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            return true;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Stores DATA as the object ID, unless it is already present,
+     *  encoded with the default codec. */
+    public void write(String id, byte[] data) {
+        write(id, data, Codec.getDefault());
+    }
+
+    /** Stores DATA as the object ID, unless it is already present,
+     *  encoded with CODEC. */
+    public void write(String id, byte[] data, Codec codec) {
+        if (contains(id)) {
+            return;
+        }
+        File looseFile = looseFile(id);
+        looseFile.getParentFile().mkdirs();
+        // Write to a temporary file first so that a reader never sees a
+        // half-written object under its final name. Two threads may store
+        // the same object at once; they write identical bytes.
+        try {
+            File temp = Files.createTempFile(dir.toPath(), "tmp-", null).toFile();
+            byte[] encoded = Codec.encodeObject(data, codec);
+            writeContents(temp, encoded);
+            Files.move(temp.toPath(), looseFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+            Journal.recordObject(looseFile);
+            Trace.count("objects written: " + dir.getName(), 1);
+            Trace.count("bytes written: " + dir.getName(), encoded.length);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the IDs of all objects in this store in sorted order. */
+    public List<String> ids() {
+        TreeSet<String> ids = new TreeSet<>(looseIDs());
+        for (Pack pack : packs()) {
+            ids.addAll(pack.ids());
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /** Returns the sorted IDs of all objects in this store that start with
+     *  PREFIX. Only the loose subdirectory named by the prefix is listed,
+     *  and each pack index is binary-searched for the first possible
+     *  match, so the cost does not grow with the number of objects. */
+    public List<String> idsWithPrefix(String prefix) {
+        TreeSet<String> ids = new TreeSet<>();
+        if (!isHexPrefix(prefix)) {
+            return new ArrayList<>(ids);
+        }
+        if (prefix.length() < FANOUT_LENGTH) {
+            for (String id : looseIDs()) {
+                if (id.startsWith(prefix)) {
+                    ids.add(id);
+                }
+            }
+        } else {
+            String fanout = prefix.substring(0, FANOUT_LENGTH);
+            for (String name : plainFilenamesIn(join(dir, fanout))) {
+                String id = fanout + name;
+                if (id.length() == UID_LENGTH && id.startsWith(prefix)) {
+                    ids.add(id);
+                }
+            }
+            for (String name : legacyLooseNames()) {
+                if (name.startsWith(prefix)) {
+                    ids.add(name);
+                }
+            }
+        }
+        for (Pack pack : packs()) {
+            ids.addAll(pack.idsWithPrefix(prefix));
+        }
+        return new ArrayList<>(ids);
+    }
+
+    private static boolean isHexPrefix(String prefix) {
+        if (prefix.length() > UID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i += 1) {
+            if (Character.digit(prefix.charAt(i), 16) < 0
+                    || Character.isUpperCase(prefix.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Moves every loose object and every existing pack into a single new
+     *  pack, then deletes the loose files and the old packs. Returns the
+     *  number of objects in the new pack. */
+    public int repack() {
+        List<Pack> oldPacks = new ArrayList<>(packs());
+        List<String> loose = looseIDs();
+        List<String> ids = ids();
+        if (ids.isEmpty() || (loose.isEmpty() && oldPacks.size() <= 1)) {
+            return ids.size();
+        }
+
+        String packName = "pack-" + sha1(String.join("", ids));
+        File packFile = join(packDir, packName + ".pack");
+        File indexFile = join(packDir, packName + ".idx");
+        packDir.mkdirs();
+        if (!packFile.isFile() || !indexFile.isFile()) {
+            // A pack is named after the IDs it holds, so an existing pack
+            // with this name already has exactly these objects.
+            writePack(packFile, indexFile, ids);
+        }
+
+        for (Pack pack : oldPacks) {
+            pack.close();
+            if (!pack.packFile.equals(packFile)) {
+                pack.indexFile.delete();
+                pack.packFile.delete();
+            }
+        }
+        for (String id : loose) {
+            findLoose(id).delete();
+        }
+        for (File subdir : fanoutDirs()) {
+            // Only deletes directories that are now empty.
+            subdir.delete();
+        }
+        packs = null;
+        return ids.size();
+    }
+
+    /** Copies the objects SORTEDIDS of this store into PACKFILE, one at a
+     *  time, and writes their index to INDEXFILE. The index is written
+     *  last, so a pack without an index is never read. */
+    private void writePack(File packFile, File indexFile, List<String> sortedIDs) {
+        int count = sortedIDs.size();
+        ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + count * INDEX_ENTRY_SIZE);
+        index.putInt(INDEX_MAGIC).putInt(FORMAT_VERSION).putInt(count);
+        try (FileChannel out = FileChannel.open(packFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(PACK_MAGIC).putInt(FORMAT_VERSION).putInt(count).flip();
+            writeFully(out, header);
+            long offset = HEADER_SIZE;
+            for (String id : sortedIDs) {
+                // Objects go into the pack as stored, still encoded.
+                byte[] data = readStored(id);
+                byte[] rawID = toRawID(id);
+                ByteBuffer entry = ByteBuffer.allocate(RAW_ID_LENGTH + 4 + data.length);
+                entry.put(rawID).putInt(data.length).put(data).flip();
+                writeFully(out, entry);
+                index.put(rawID).putLong(offset + RAW_ID_LENGTH + 4).putInt(data.length);
+                offset += entry.capacity();
+            }
+            out.force(true);
+            Trace.count("fsyncs", 1);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        writeContents(indexFile, index.array());
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /** Returns the file a new loose object ID is written to. */
+    private File looseFile(String id) {
+        if (id.length() <= FANOUT_LENGTH) {
+            return join(dir, id);
+        }
+        return join(dir, id.substring(0, FANOUT_LENGTH), id.substring(FANOUT_LENGTH));
+    }
+
+    /** Returns the loose file of the object ID, or null if it is not
+     *  stored loose. */
+    private File findLoose(String id) {
+        File file = looseFile(id);
+        if (file.isFile()) {
+            return file;
+        }
+        File legacyFile = join(dir, id);
+        return legacyFile.isFile() ? legacyFile : null;
+    }
+
+    private List<String> looseIDs() {
+        List<String> ids = legacyLooseNames();
+        for (File subdir : fanoutDirs()) {
+            for (String name : plainFilenamesIn(subdir)) {
+                if (name.length() == UID_LENGTH - FANOUT_LENGTH) {
+                    ids.add(subdir.getName() + name);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /** Returns the IDs of objects stored directly under DIR, as older
+     *  repositories did. */
+    private List<String> legacyLooseNames() {
+        List<String> ids = new ArrayList<>();
+        for (String name : plainFilenamesIn(dir)) {
+            if (name.length() == UID_LENGTH) {
+                ids.add(name);
+            }
+        }
+        return ids;
+    }
+
+    private List<File> fanoutDirs() {
+        List<File> subdirs = new ArrayList<>();
+        File[] files = dir.listFiles(file -> file.isDirectory()
+                && file.getName().length() == FANOUT_LENGTH);
+        if (files != null) {
+            subdirs.addAll(Arrays.asList(files));
+        }
+        return subdirs;
+    }
+
+    private Pack findInPacks(String id) {
+        if (id.length() != UID_LENGTH) {
+            return null;
+        }
+        for (Pack pack : packs()) {
+            if (pack.find(id) >= 0) {
+                return pack;
+            }
+        }
+        return null;
+    }
+
+    /** Reads the list of packs again if packs were added or removed since
+     *  it was read, as gc does. */
+    public synchronized void refresh() {
+        if (packs == null) {
+            return;
+        }
+        Set<String> names = new HashSet<>();
+        for (Pack pack : packs) {
+            names.add(pack.indexFile.getName());
+        }
+        for (String name : plainFilenamesIn(packDir)) {
+            if (name.endsWith(".idx") && !names.remove(name)) {
+                packs = null;
+                return;
+            }
+        }
+        if (!names.isEmpty()) {
+            packs = null;
+        }
+    }
+
+    private synchronized List<Pack> packs() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            for (String name : plainFilenamesIn(packDir)) {
+                if (name.endsWith(".idx")) {
+                    String base = name.substring(0, name.length() - ".idx".length());
+                    File packFile = join(packDir, base + ".pack");
+                    if (packFile.isFile()) {
+                        packs.add(new Pack(packFile, join(packDir, name)));
+                    }
+                }
+            }
+        }
+        return packs;
+    }
+
+    /** Converts the 40-character hexadecimal ID to its 20 raw bytes. */
+    static byte[] toRawID(String id) {
+        byte[] raw = new byte[RAW_ID_LENGTH];
+        for (int i = 0; i < RAW_ID_LENGTH; i += 1) {
+            raw[i] = (byte) ((Character.digit(id.charAt(2 * i), 16) << 4)
+                    | Character.digit(id.charAt(2 * i + 1), 16));
+        }
+        return raw;
+    }
+
+    /** Converts 20 raw bytes back to a 40-character hexadecimal ID. */
+    static String fromRawID(byte[] raw) {
+        char[] hex = new char[2 * raw.length];
+        for (int i = 0; i < raw.length; i += 1) {
+            hex[2 * i] = HEX_DIGITS[(raw[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[raw[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /** One pack file together with its memory-mapped index. */
+    private static class Pack {
+        private final File packFile;
+        private final File indexFile;
+        private final MappedByteBuffer index;
+        private final int count;
+        private RandomAccessFile data;
+
+        Pack(File packFile, File indexFile) {
+            this.packFile = packFile;
+            this.indexFile = indexFile;
+            try (FileChannel channel = FileChannel.open(indexFile.toPath())) {
+                index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != FORMAT_VERSION) {
+                throw error("Corrupt pack index %s.", indexFile.getName());
+            }
+            count = index.getInt(8);
+        }
+
+        /** Returns the position of ID in the index, or -1 if absent. */
+        int find(String id) {
+            byte[] target = toRawID(id);
+            byte[] probe = new byte[RAW_ID_LENGTH];
+            int lo = 0;
+            int hi = count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                index.get(HEADER_SIZE + mid * INDEX_ENTRY_SIZE, probe);
+                int cmp = Arrays.compareUnsigned(probe, target);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        /** Returns the IDs in this pack that start with PREFIX. */
+        List<String> idsWithPrefix(String prefix) {
+            // The smallest raw ID with this prefix: the prefix followed by
+            // zero bits.
+            byte[] low = new byte[RAW_ID_LENGTH];
+            for (int i = 0; i < prefix.length(); i += 1) {
+                int digit = Character.digit(prefix.charAt(i), 16);
+                low[i / 2] |= (byte) (i % 2 == 0 ? digit << 4 : digit);
+            }
+            byte[] probe = new byte[RAW_ID_LENGTH];
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                index.get(HEADER_SIZE + mid * INDEX_ENTRY_SIZE, probe);
+                if (Arrays.compareUnsigned(probe, low) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            List<String> ids = new ArrayList<>();
+            for (int i = lo; i < count; i += 1) {
+                index.get(HEADER_SIZE + i * INDEX_ENTRY_SIZE, probe);
+                String id = fromRawID(probe);
+                if (!id.startsWith(prefix)) {
+                    break;
+                }
+                ids.add(id);
+            }
+            return ids;
+        }
+
+        synchronized byte[] read(String id) {
+            int pos = find(id);
+            if (pos < 0) {
+                return null;
+            }
+            byte[] result = new byte[length(pos)];
+            try {
+                RandomAccessFile file = data();
+                file.seek(offset(pos));
+                file.readFully(result);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            return result;
+        }
+
+        synchronized boolean transferTo(String id, long skip,
+                                        WritableByteChannel target) throws IOException {
+            int pos = find(id);
+            if (pos < 0) {
+                return false;
+            }
+            transferObject(data().getChannel(), offset(pos), length(pos), skip, target);
+            return true;
+        }
+
+        /** Copies the object ID to TARGET as it is stored in the pack,
+         *  without decoding it. Returns false if it is not in the pack. */
+        synchronized boolean copyStored(String id, WritableByteChannel target)
+                throws IOException {
+            int pos = find(id);
+            if (pos < 0) {
+                return false;
+            }
+            transferFully(data().getChannel(), offset(pos), length(pos), target);
+            return true;
+        }
+
+        /** Returns the offset in the pack of the object at index POS. */
+        private long offset(int pos) {
+            return index.getLong(HEADER_SIZE + pos * INDEX_ENTRY_SIZE + RAW_ID_LENGTH);
+        }
+
+        /** Returns the length of the object at index POS. */
+        private int length(int pos) {
+            return index.getInt(HEADER_SIZE + pos * INDEX_ENTRY_SIZE + RAW_ID_LENGTH + 8);
+        }
+
+        private RandomAccessFile data() throws IOException {
+            if (data == null) {
+                data = new RandomAccessFile(packFile, "r");
+            }
+            return data;
+        }
+
+        List<String> ids() {
+            List<String> ids = new ArrayList<>(count);
+            byte[] raw = new byte[RAW_ID_LENGTH];
+            for (int i = 0; i < count; i += 1) {
+                index.get(HEADER_SIZE + i * INDEX_ENTRY_SIZE, raw);
+                ids.add(fromRawID(raw));
+            }
+            return ids;
+        }
+
+        synchronized void close() {
+            if (data != null) {
+                try {
+                    data.close();
+                } catch (IOException excp) {
+                    // Closing a read-only file cannot lose data.
+                }
+                data = null;
+            }
+        }
+    }
+}
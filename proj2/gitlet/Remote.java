@@ -13,8 +13,6 @@ import static gitlet.Utils.*;
  */
 public class Remote implements Serializable {
 
-    /** File that stores all remote mappings. */
-    private static final File REMOTES_FILE = Utils.join(Repository.REMOTES_DIR, "remotes");
     /** Map of remote name -> path. */
     private TreeMap<String, String> remoteMap;
 
@@ -23,8 +21,8 @@ public class Remote implements Serializable {
         if (!Repository.REMOTES_DIR.exists()) {
             Repository.REMOTES_DIR.mkdir();
         }
-        if (REMOTES_FILE.exists()) {
-            remoteMap = (TreeMap<String, String>) readObject(REMOTES_FILE, TreeMap.class);
+        if (Journal.exists(remotesFile())) {
+            remoteMap = deserialize(Journal.readContents(remotesFile()), TreeMap.class);
         } else {
             remoteMap = new TreeMap<>();
         }
@@ -35,16 +33,20 @@ public class Remote implements Serializable {
         return new Remote();
     }
 
+    /** File that stores all remote mappings. */
+    private static File remotesFile() {
+        return Utils.join(Repository.REMOTES_DIR, "remotes");
+    }
+
     // Save current remotes to file.
     private void saveRemotes() {
-        writeObject(REMOTES_FILE, (Serializable) remoteMap);
+        Journal.write(remotesFile(), serialize(remoteMap));
     }
 
      // Add a remote with given name and path.
     public void addRemote(String name, String path) {
         if (remoteMap.containsKey(name)) {
-            System.out.println("A remote with that name already exists.");
-            System.exit(0);
+            throw error("A remote with that name already exists.");
         }
         path = normalizePath(path);
         remoteMap.put(name, path);
@@ -54,8 +56,7 @@ public class Remote implements Serializable {
      // Remove a remote with given name.
     public void removeRemote(String name) {
         if (!remoteMap.containsKey(name)) {
-            System.out.println("A remote with that name does not exist.");
-            System.exit(0);
+            throw error("A remote with that name does not exist.");
         }
         remoteMap.remove(name);
         saveRemotes();
@@ -69,61 +70,29 @@ public class Remote implements Serializable {
         return remoteMap;
     }
 
-     // Normalize the path to match system-specific separator.
+     // Normalize the path to match system-specific separator. A gitlet://
+     // URL is kept as it is.
     private String normalizePath(String inputPath) {
+        if (NetworkRemote.isURL(inputPath)) {
+            return inputPath;
+        }
         return inputPath.replace("/", File.separator);
     }
 
     public static void copyCommitsFromRemote(String commitID, File remoteGitletDir) {
-        if (commitID == null) {
-            return;
-        }
-        File localCommitFile = join(Repository.COMMITS_DIR, commitID);
-        if (localCommitFile.exists()) {
-            return;
-        }
-
-        File remoteCommitFile = join(remoteGitletDir, "commits", commitID);
-        writeContents(localCommitFile, readContents(remoteCommitFile));
-        Commit remoteCommit = readObject(remoteCommitFile, Commit.class);
-        Map<String, String> remoteCommitFiles = remoteCommit.getFileNameToBlobID();
-        for (String blobID : remoteCommitFiles.values()) {
-            File localBlobFile = join(Repository.BLOBS_DIR, blobID);
-            if (!localBlobFile.exists()) {
-                File remoteBlobFile = join(remoteGitletDir, "blobs", blobID);
-                writeContents(localBlobFile, readContents(remoteBlobFile));
-            }
-        }
-
-        copyCommitsFromRemote(remoteCommit.getParentCommitID(), remoteGitletDir);
-        String secondParentID = remoteCommit.getSecondParentCommitID();
-        if (secondParentID != null) {
-            copyCommitsFromRemote(secondParentID, remoteGitletDir);
-        }
+        copyCommits(commitID, remoteGitletDir, Repository.GITLET_DIR);
     }
 
     public static void copyCommitsToRemote(String commitID, File remoteGitletDir) {
-        File remoteCommitFile = join(remoteGitletDir, "commits", commitID);
-        if (remoteCommitFile.exists()) {
-            return;
-        }
-
-        File localCommitFile = join(Repository.COMMITS_DIR, commitID);
-        writeContents(remoteCommitFile, readContents(localCommitFile));
-        Commit localCommit = readObject(localCommitFile, Commit.class);
-        Map<String, String> fileMap = localCommit.getFileNameToBlobID();
-        for (String blobID : fileMap.values()) {
-            File remoteBlobFile = join(remoteGitletDir, "blobs", blobID);
-            if (!remoteBlobFile.exists()) {
-                File localBlobFile = join(Repository.BLOBS_DIR, blobID);
-                writeContents(remoteBlobFile, readContents(localBlobFile));
-            }
-        }
+        copyCommits(commitID, Repository.GITLET_DIR, remoteGitletDir);
+    }
 
-        copyCommitsToRemote(localCommit.getParentCommitID(), remoteGitletDir);
-        String secondParentID = localCommit.getSecondParentCommitID();
-        if (secondParentID != null) {
-            copyCommitsToRemote(secondParentID, remoteGitletDir);
+    // Copy the commit and its history, along with the trees, blobs and chunks
+    // they refer to, that the destination does not have yet.
+    private static void copyCommits(String commitID, File fromGitletDir, File toGitletDir) {
+        if (commitID == null) {
+            return;
         }
+        Transfer.copy(commitID, fromGitletDir, toGitletDir);
     }
 }
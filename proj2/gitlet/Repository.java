@@ -1,9 +1,14 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serial;
 import java.io.Serializable;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.stream.Collectors;
 
 import static gitlet.Utils.*;
 
@@ -22,28 +27,48 @@ public class Repository implements Serializable {
     @Serial
     private static final long serialVersionUID = 1L;
 
-    public static final File CWD = new File(System.getProperty("user.dir"));
+    public static File CWD;
     /** The .gitlet directory. */
-    public static final File GITLET_DIR = join(CWD, ".gitlet");
+    public static File GITLET_DIR;
     /** The commits' directory. */
-    public static final File COMMITS_DIR = join(GITLET_DIR, "commits");
+    public static File COMMITS_DIR;
     /** The .gitlet/blobs directory. */
-    public static final File BLOBS_DIR = join(GITLET_DIR, "blobs");
+    public static File BLOBS_DIR;
+    /** The .gitlet/trees directory. (stores directory snapshots) */
+    public static File TREES_DIR;
+    /** The .gitlet/chunks directory. (stores pieces of large blobs) */
+    public static File CHUNKS_DIR;
+    /** The object store holding the commits. */
+    public static ObjectStore COMMIT_STORE;
+    /** The object store holding the blobs. */
+    public static ObjectStore BLOB_STORE;
+    /** The object store holding the trees. */
+    public static ObjectStore TREE_STORE;
+    /** The object store holding the chunks of large blobs. */
+    public static ObjectStore CHUNK_STORE;
     /** The .gitlet/refs directory. (stores branches) */
-    public static final File REFS_DIR = join(GITLET_DIR, "refs");
+    public static File REFS_DIR;
     /** The .gitlet/refs/heads directory. (stores local branches) */
-    public static final File HEADS_DIR = join(REFS_DIR, "heads");
+    public static File HEADS_DIR;
     /** The .gitlet/refs/remotes directory. (stores remotes) */
-    public static final File REMOTES_DIR = join(REFS_DIR, "remotes");
+    public static File REMOTES_DIR;
 
     /** HEAD file stores the name of the current branch. */
-    public static final File HEAD = join(GITLET_DIR, "HEAD");
+    public static File HEAD;
+
+    static {
+        setCWD(new File(System.getProperty("user.dir")));
+    }
+
+    /** The number of unchanged lines shown around each change by diff. */
+    private static final int DIFF_CONTEXT = 3;
+    /** The number of commits global-log decodes at once. */
+    private static final int GLOBAL_LOG_BATCH_SIZE = 512;
 
     public static void init() {
         if (GITLET_DIR.exists()) {
-            System.out.println("A Gitlet version-control system already exists"
+            throw error("A Gitlet version-control system already exists"
                                + "in the current directory.");
-            System.exit(0);
         }
         GITLET_DIR.mkdir();
 
@@ -51,6 +76,12 @@ public class Repository implements Serializable {
         Commit initialCommit = new Commit();
         initialCommit.saveCommit();
         String initialCommitID = initialCommit.getCommitID();
+        CommitGraph.getCommitGraph().find(initialCommitID);
+        // Start the message index along with the repository, so later
+        // commits only append to it.
+        MessageIndex.getMessageIndex();
+        MessageIndex.addCommit(initialCommitID, initialCommit.getMessage());
+        ChangedPaths.addCommit(initialCommitID, new ArrayList<>());
 
         BLOBS_DIR.mkdir();
         REFS_DIR.mkdir();
@@ -59,21 +90,118 @@ public class Repository implements Serializable {
 
         String initialBranchName = "master";
         Branch.createBranch(initialBranchName, initialCommitID);
-        writeContents(HEAD, initialBranchName);
+        Journal.write(HEAD, initialBranchName);
     }
 
-    // Add a file to the stage.
-    public static void add(String fileName) {
-        File fileToBeAdded = join(CWD, fileName);
-        if (!fileToBeAdded.exists()) {
-            System.out.println("File does not exist.");
-            System.exit(0);
+    /** Makes DIR the working directory of the commands run from now on;
+     *  the gitlet server does this for each request. The objects cached by
+     *  earlier commands are kept while DIR stays the same, since objects
+     *  never change, but the lists of packs are read again, in case gc ran
+     *  in between. */
+    static void setCWD(File dir) {
+        if (dir.equals(CWD)) {
+            COMMIT_STORE.refresh();
+            BLOB_STORE.refresh();
+            TREE_STORE.refresh();
+            CHUNK_STORE.refresh();
+            return;
+        }
+        if (CWD != null) {
+            // The objects of another repository.
+            Commit.getCache().clear();
+            Blob.getCache().clear();
+            CommitGraph.reset();
+        }
+        CWD = dir;
+        GITLET_DIR = join(CWD, ".gitlet");
+        COMMITS_DIR = join(GITLET_DIR, "commits");
+        BLOBS_DIR = join(GITLET_DIR, "blobs");
+        TREES_DIR = join(GITLET_DIR, "trees");
+        CHUNKS_DIR = join(GITLET_DIR, "chunks");
+        COMMIT_STORE = new ObjectStore(COMMITS_DIR);
+        BLOB_STORE = new ObjectStore(BLOBS_DIR);
+        TREE_STORE = new ObjectStore(TREES_DIR);
+        CHUNK_STORE = new ObjectStore(CHUNKS_DIR);
+        REFS_DIR = join(GITLET_DIR, "refs");
+        HEADS_DIR = join(REFS_DIR, "heads");
+        REMOTES_DIR = join(REFS_DIR, "remotes");
+        HEAD = join(GITLET_DIR, "HEAD");
+    }
+
+    // Add files to the stage. A directory adds every file under it.
+    public static void add(String... fileNames) {
+        List<File> filesToBeAdded = new ArrayList<>();
+        for (String fileName : fileNames) {
+            File file = workingFile(fileName);
+            if (!file.exists()) {
+                throw error("File does not exist.");
+            }
+            collectFiles(file, filesToBeAdded);
         }
 
         StagingArea stagingArea = StagingArea.getStagingArea();
         String currentCommitID = Branch.getCurrentCommitID();
-        stagingArea.addFile(fileToBeAdded, currentCommitID);
-        stagingArea.saveStagingArea();
+        stagingArea.addFiles(filesToBeAdded, currentCommitID);
+    }
+
+    // Add FILE, or every plain file under it if it is a directory, to FILES.
+    private static void collectFiles(File file, List<File> files) {
+        if (file.isFile()) {
+            files.add(file);
+            return;
+        }
+        String[] names = file.list();
+        if (names == null || file.equals(GITLET_DIR) || join(file, ".gitlet").exists()
+                && !file.toPath().normalize().equals(CWD.toPath().normalize())) {
+            return;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            collectFiles(join(file, name), files);
+        }
+    }
+
+    // Return every plain file of the working directory, outside .gitlet and
+    // nested repositories, by the name it is tracked under, sorted.
+    public static List<String> workingFileNames() {
+        List<File> files = new ArrayList<>();
+        collectFiles(CWD, files);
+        List<String> fileNames = new ArrayList<>();
+        for (File file : files) {
+            fileNames.add(relativePath(file));
+        }
+        Collections.sort(fileNames);
+        return fileNames;
+    }
+
+    // Return the working file FILENAME, with "." and ".." resolved. A name
+    // that leads out of the working directory, or into .gitlet, is refused,
+    // so it is never staged or written.
+    public static File workingFile(String fileName) {
+        Path path = join(CWD, fileName).toPath().normalize();
+        if (!path.startsWith(CWD.toPath().normalize())
+                || path.startsWith(GITLET_DIR.toPath().normalize())) {
+            throw error("File is outside the working directory.");
+        }
+        return path.toFile();
+    }
+
+    // Return the name of FILE relative to the working directory, with '/'
+    // between directories, as it is tracked by commits and the stage.
+    public static String relativePath(File file) {
+        return CWD.toPath().relativize(file.toPath().normalize()).toString()
+                .replace(File.separatorChar, '/');
+    }
+
+    // Delete the working file FILENAME, which may be in a subdirectory.
+    // Returns true if it was deleted.
+    public static boolean deleteWorkingFile(String fileName) {
+        File file = join(CWD, fileName);
+        if (!GITLET_DIR.isDirectory()
+                || !file.toPath().normalize().startsWith(CWD.toPath())) {
+            throw new IllegalArgumentException("not .gitlet working directory");
+        }
+        return !file.isDirectory() && file.delete();
     }
 
     public static void commit(String message) {
@@ -83,36 +211,38 @@ public class Repository implements Serializable {
     private static void commitWithMerge(String message, String secondParentID) {
         // Failure cases if there is no commit message or changes added to the commit.
         if (message.isEmpty()) {
-            System.out.println("Please enter a commit message.");
-            System.exit(0);
+            throw error("Please enter a commit message.");
         }
         StagingArea stagingArea = StagingArea.getStagingArea();
         Map<String, String> stageForAddition = stagingArea.getStageForAddition();
         List<String> stageForRemoval = stagingArea.getStageForRemoval();
         if (stageForAddition.isEmpty() && stageForRemoval.isEmpty()) {
-            System.out.println("No changes added to the commit.");
-            System.exit(0);
+            throw error("No changes added to the commit.");
         }
 
         // Operate addition and removal and produce a new commit.
         String currentCommitID = Branch.getCurrentCommitID();
         Commit currentCommit = Commit.findCommit(currentCommitID);
-        Map<String, String> newFileMap = new HashMap<>(currentCommit.getFileNameToBlobID());
-        for (String fileName : stageForAddition.keySet()) {
-            newFileMap.put(fileName, stageForAddition.get(fileName));
-        }
+        // Only the directories holding staged files get new trees.
+        Map<String, String> changes = new TreeMap<>(stageForAddition);
         for (String fileName : stageForRemoval) {
-            newFileMap.remove(fileName);
+            changes.put(fileName, null);
+        }
+        Commit newCommit;
+        try (Trace.Phase phase = Trace.phase("write tree and commit")) {
+            String treeID = Tree.update(currentCommit.getTreeID(), changes);
+            newCommit = Commit.createMergeCommit(message,
+                    currentCommitID, secondParentID, treeID);
+            newCommit.saveCommit();
         }
-        Commit newCommit = Commit.createMergeCommit(message,
-                currentCommitID, secondParentID, newFileMap);
-        newCommit.saveCommit();
 
         // Update the current branch and staging area.
         String newCommitID = newCommit.getCommitID();
+        CommitGraph.getCommitGraph().find(newCommitID);
+        MessageIndex.addCommit(newCommitID, message);
+        ChangedPaths.addCommit(newCommitID, changes.keySet());
         Branch.updateBranch(Branch.getCurrentBranchName(), newCommitID);
         stagingArea.clear();
-        stagingArea.saveStagingArea();
     }
 
     // Remove a file from the CWD. The change will be committed in the next commit.
@@ -125,51 +255,84 @@ public class Repository implements Serializable {
         Commit currentCommit = Commit.findCommit(currentCommitID);
         Map<String, String> currentFileMap = currentCommit.getFileNameToBlobID();
         if (!stageForAddition.containsKey(fileName) && !currentFileMap.containsKey(fileName)) {
-            System.out.println("No reason to remove this file.");
-            System.exit(0);
+            throw error("No reason to remove this file.");
         }
 
-        File fileToBeRemoved = join(CWD, fileName);
+        File fileToBeRemoved = workingFile(fileName);
         stagingArea.removeFile(fileToBeRemoved, currentFileMap);
-        stagingArea.saveStagingArea();
     }
 
     // Print out commits history from the current commit to the initial commit.
+    // The first parents are followed through the commit graph, so only the
+    // commits that are printed are read.
     public static void log() {
-        String currentCommitID = Branch.getCurrentCommitID();
-        Commit currentCommit = Commit.findCommit(currentCommitID);
-        while (currentCommit != null) {
-            System.out.println(currentCommit);
-            String parentCommitID = currentCommit.getParentCommitID();
-            if (parentCommitID == null) {
-                break;
+        CommitGraph graph = CommitGraph.getCommitGraph();
+        int pos = graph.find(Branch.getCurrentCommitID());
+        while (pos >= 0) {
+            System.out.println(Commit.findCommit(graph.id(pos)));
+            pos = graph.firstParent(pos);
+        }
+    }
+
+    // Like log, but only the commits that changed PATH, a file or a
+    // directory, from their first parent. The changed-path filters pass
+    // over most of the others without reading them.
+    public static void log(String path) {
+        String normalized = path.replaceAll("/+$", "");
+        while (normalized.startsWith("./")) {
+            normalized = normalized.substring(2);
+        }
+        CommitGraph graph = CommitGraph.getCommitGraph();
+        ChangedPaths changedPaths = ChangedPaths.getChangedPaths();
+        int pos = graph.find(Branch.getCurrentCommitID());
+        while (pos >= 0) {
+            int parent = graph.firstParent(pos);
+            String commitID = graph.id(pos);
+            if (changedPaths.changed(commitID, parent >= 0 ? graph.id(parent) : null,
+                    normalized)) {
+                System.out.println(Commit.findCommit(commitID));
             }
-            currentCommit = Commit.findCommit(parentCommitID);
+            pos = parent;
         }
     }
 
     // "Log" but ignores the order.
     public static void globalLog() {
-        // 'Commits' returned here are actually their commitID.
-        List<String> commits = plainFilenamesIn(COMMITS_DIR);
-        for (String commit : commits) {
-            System.out.println(Commit.findCommit(commit));
+        // Commits are decoded in parallel, a batch at a time, and each batch
+        // is printed in order as soon as it is ready.
+        List<String> commits = COMMIT_STORE.ids();
+        for (int start = 0; start < commits.size(); start += GLOBAL_LOG_BATCH_SIZE) {
+            List<String> batch = commits.subList(start,
+                    Math.min(start + GLOBAL_LOG_BATCH_SIZE, commits.size()));
+            StringBuilder output = new StringBuilder();
+            for (String entry : batch.parallelStream()
+                    .map(commit -> Commit.findCommit(commit).toString())
+                    .collect(Collectors.toList())) {
+                output.append(entry).append("\n");
+            }
+            System.out.print(output);
         }
+        System.out.flush();
     }
 
-    // Find commits with a given message.
-    public static void find(String message) {
-        List<String> commits = plainFilenamesIn(COMMITS_DIR);
-        List<String> matchingCommits = new ArrayList<>();
-        for (String commit : commits) {
-            if (Commit.findCommit(commit).getMessage().equals(message)) {
-                matchingCommits.add(commit);
-            }
+    // Find commits with a given message. MODE is "--contains" to find
+    // messages containing it, "--word" to find messages using all of its
+    // words in any case, or null for exactly that message.
+    public static void find(String mode, String message) {
+        MessageIndex index = MessageIndex.getMessageIndex();
+        List<String> matchingCommits;
+        if (mode == null) {
+            matchingCommits = index.findExact(message);
+        } else if (mode.equals("--contains")) {
+            matchingCommits = index.findContaining(message);
+        } else if (mode.equals("--word")) {
+            matchingCommits = index.findWords(message);
+        } else {
+            throw error("Incorrect operands.");
         }
 
         if (matchingCommits.isEmpty()) {
-            System.out.println("Found no commit with that message.");
-            System.exit(0);
+            throw error("Found no commit with that message.");
         } else {
             for (String matchingCommit : matchingCommits) {
                 System.out.println(matchingCommit);
@@ -181,7 +344,7 @@ public class Repository implements Serializable {
     public static void status() {
         System.out.println("=== Branches ===");
         String currentBranchName = Branch.getCurrentBranchName();
-        List<String> branchNames = plainFilenamesIn(HEADS_DIR);
+        List<String> branchNames = Journal.plainFilenamesIn(HEADS_DIR);
         for (String branchName : branchNames) {
             if (branchName.equals(currentBranchName)) {
                 System.out.println("*" + branchName);
@@ -208,14 +371,20 @@ public class Repository implements Serializable {
 
         String currentCommitID = Branch.getCurrentCommitID();
         Commit currentCommit = Commit.findCommit(currentCommitID);
+        List<String> modifiedFiles;
+        List<String> untrackedFiles;
+        try (Trace.Phase phase = Trace.phase("scan working tree")) {
+            modifiedFiles = currentCommit.getModifiedNotStagedFiles();
+            untrackedFiles = currentCommit.getUntrackedFiles();
+        }
         System.out.println("=== Modifications Not Staged For Commit ===");
-        for (String fileName : currentCommit.getModifiedNotStagedFiles()) {
+        for (String fileName : modifiedFiles) {
             System.out.println(fileName);
         }
         System.out.println();
 
         System.out.println("=== Untracked Files ===");
-        for (String fileName : currentCommit.getUntrackedFiles()) {
+        for (String fileName : untrackedFiles) {
             System.out.println(fileName);
         }
         System.out.println();
@@ -228,51 +397,37 @@ public class Repository implements Serializable {
 
     // Restore the content of a particular file from a particular commit.
     public static void checkOutWithCommitIDAndFileName(String commitID, String fileName) {
-        Commit targetCommit;
-        if (commitID.length() < Commit.STANDARD_COMMIT_ID_LENGTH) {
-            targetCommit = Commit.findCommitWithShortID(commitID);
-        } else {
-            targetCommit = Commit.findCommit(commitID);
-        }
-        if (targetCommit == null) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
-        }
+        Commit targetCommit = findCommitOrExit(commitID);
 
         Map<String, String> targetFileMap = targetCommit.getFileNameToBlobID();
         if (!targetFileMap.containsKey(fileName)) {
-            System.out.println("File does not exist in that commit.");
-            System.exit(0);
+            throw error("File does not exist in that commit.");
         }
 
         String blobID = targetFileMap.get(fileName);
-        byte[] blobContent = Blob.getBlobContent(blobID);
-        File fileToBeCheckedOut = join(CWD, fileName);
-        writeContents(fileToBeCheckedOut, blobContent);
+        File fileToBeCheckedOut = workingFile(fileName);
+        Blob.checkOutBlob(blobID, fileToBeCheckedOut);
     }
 
     // Turn to the given branch.
     public static void checkOutWithBranchName(String branchName) {
         File branchToBeCheckedOutFile = Branch.getBranchFile(branchName);
-        if (!branchToBeCheckedOutFile.exists()) {
-            System.out.println("No such branch exists.");
-            System.exit(0);
+        if (!Journal.exists(branchToBeCheckedOutFile)) {
+            throw error("No such branch exists.");
         }
 
         if (branchName.equals(Branch.getCurrentBranchName())) {
-            System.out.println("No need to checkout the current branch.");
-            System.exit(0);
+            throw error("No need to checkout the current branch.");
         }
 
         Branch.checkOutBranchFiles(branchName);
-        writeContents(HEAD, branchName);
+        Journal.write(HEAD, branchName);
     }
 
     public static void branch(String branchName) {
-        List<String> branches = plainFilenamesIn(HEADS_DIR);
+        List<String> branches = Journal.plainFilenamesIn(HEADS_DIR);
         if (branches.contains(branchName)) {
-            System.out.println("A branch with that name already exists.");
-            System.exit(0);
+            throw error("A branch with that name already exists.");
         }
 
         Branch.createBranch(branchName, Branch.getCurrentCommitID());
@@ -280,46 +435,35 @@ public class Repository implements Serializable {
 
     public static void removeBranch(String branchName) {
         File branchFile = join(HEADS_DIR, branchName);
-        if (!branchFile.exists()) {
-            System.out.println("A branch with that name does not exist.");
-            System.exit(0);
+        if (!Journal.exists(branchFile)) {
+            throw error("A branch with that name does not exist.");
         }
         if (branchName.equals(Branch.getCurrentBranchName())) {
-            System.out.println("Cannot remove the current branch.");
-            System.exit(0);
+            throw error("Cannot remove the current branch.");
         }
 
-        branchFile.delete();
+        Journal.delete(branchFile);
     }
 
     // Restore the status to the given commit.
     public static void reset(String commitID) {
-        Commit targetCommit;
-        if (commitID.length() < Commit.STANDARD_COMMIT_ID_LENGTH) {
-            targetCommit = Commit.findCommitWithShortID(commitID);
-        } else {
-            targetCommit = Commit.findCommit(commitID);
-        }
-        if (targetCommit == null) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
-        }
+        Commit targetCommit = findCommitOrExit(commitID);
 
-        Branch.checkOutCommit(commitID);
-        Branch.updateBranch(Branch.getCurrentBranchName(), commitID);
+        // An abbreviated ID must not end up in the branch file.
+        String fullCommitID = targetCommit.getCommitID();
+        Branch.checkOutCommit(fullCommitID);
+        Branch.updateBranch(Branch.getCurrentBranchName(), fullCommitID);
     }
 
     // Merge two branches together.
     public static void merge(String branchName) {
         File branchFile = join(HEADS_DIR, branchName);
-        if (!branchFile.exists()) {
-            System.out.println("A branch with that name does not exist.");
-            System.exit(0);
+        if (!Journal.exists(branchFile)) {
+            throw error("A branch with that name does not exist.");
         }
         String currentBranchName = Branch.getCurrentBranchName();
         if (branchName.equals(currentBranchName)) {
-            System.out.println("Cannot merge a branch with itself.");
-            System.exit(0);
+            throw error("Cannot merge a branch with itself.");
         }
 
         StagingArea stagingArea = StagingArea.getStagingArea();
@@ -327,14 +471,17 @@ public class Repository implements Serializable {
         List<String> stageForRemoval = stagingArea.getStageForRemoval();
         if (!stageForAddition.isEmpty()
                 || !stageForRemoval.isEmpty()) {
-            System.out.println("You have uncommitted changes.");
-            System.exit(0);
+            throw error("You have uncommitted changes.");
         }
         Commit currentCommit = Commit.findCommit(Branch.getCurrentCommitID());
         Commit branchCommit = Commit.findCommit(Branch.getBranchCurrentCommitID(branchName));
         Map<String, String> branchFileMap = branchCommit.getFileNameToBlobID();
         List<String> currentUntrackedFiles = new ArrayList<>();
-        for (String file : currentCommit.getUntrackedFiles()) {
+        List<String> untrackedFiles;
+        try (Trace.Phase phase = Trace.phase("scan working tree")) {
+            untrackedFiles = currentCommit.getUntrackedFiles();
+        }
+        for (String file : untrackedFiles) {
             String fileBlobID = Blob.getBlobID(file);
             if (!branchFileMap.containsKey(file)
                     || !fileBlobID.equals(branchFileMap.get(file))) {
@@ -344,14 +491,16 @@ public class Repository implements Serializable {
             }
         }
         if (!currentUntrackedFiles.isEmpty()) {
-            System.out.println("There is an untracked file in the way; "
+            throw error("There is an untracked file in the way; "
                     + "delete it, or add and commit it first.");
-            System.exit(0);
         }
 
         String branchCommitID = Branch.getBranchCurrentCommitID(branchName);
         String currentCommitID = Branch.getCurrentCommitID();
-        String splitPointID = Branch.findSplitPoint(branchCommitID);
+        String splitPointID;
+        try (Trace.Phase phase = Trace.phase("find split point")) {
+            splitPointID = Branch.findSplitPoint(branchCommitID);
+        }
         if (Objects.equals(splitPointID, branchCommitID)) {
             // Split point is the branch commit, do nothing.
             System.out.println("Given branch is an ancestor of the current branch.");
@@ -366,7 +515,10 @@ public class Repository implements Serializable {
             return;
         }
 
-        boolean hasMergeConflict = Branch.mergeBranch(branchName, splitPointID);
+        boolean hasMergeConflict;
+        try (Trace.Phase phase = Trace.phase("merge trees")) {
+            hasMergeConflict = Branch.mergeBranch(branchName, splitPointID);
+        }
         String message;
         if (hasMergeConflict) {
             message = "Encountered a merge conflict.";
@@ -378,6 +530,129 @@ public class Repository implements Serializable {
         commitWithMerge(message, branchCommitID);
     }
 
+    // Show the differences between two versions of the tracked files:
+    //   diff                  the stage and the working directory
+    //   diff --cached         the current commit and the stage
+    //   diff COMMIT           a commit and the working directory
+    //   diff COMMIT COMMIT    two commits
+    // Files whose blob IDs are the same on both sides are skipped without
+    // being read, and each file's hunks are written out before the next
+    // file is read.
+    public static void diff(String... args) {
+        Commit currentCommit = Commit.findCommit(Branch.getCurrentCommitID());
+        SortedMap<String, String[]> changes;
+        boolean toWorkingFiles = true;
+        if (args.length == 2) {
+            changes = Tree.diff(findCommitOrExit(args[0]).getTreeID(),
+                    findCommitOrExit(args[1]).getTreeID());
+            toWorkingFiles = false;
+        } else if (args.length == 1 && args[0].equals("--cached")) {
+            changes = diffFiles(currentCommit.getFileNameToBlobID(), stagedFiles(currentCommit));
+            toWorkingFiles = false;
+        } else if (args.length == 1) {
+            Map<String, String> commitFiles = findCommitOrExit(args[0]).getFileNameToBlobID();
+            changes = diffFiles(commitFiles, workingFiles(commitFiles, currentCommit));
+        } else {
+            Map<String, String> stagedFiles = stagedFiles(currentCommit);
+            changes = diffFiles(stagedFiles, workingFiles(stagedFiles, currentCommit));
+        }
+
+        OutputStream out = new BufferedOutputStream(System.out);
+        try {
+            for (Map.Entry<String, String[]> change : changes.entrySet()) {
+                String fileName = change.getKey();
+                String oldBlobID = change.getValue()[0];
+                String newBlobID = change.getValue()[1];
+                byte[] oldContent = oldBlobID == null
+                        ? new byte[0] : Blob.getBlobContent(oldBlobID);
+                byte[] newContent;
+                if (newBlobID == null) {
+                    newContent = new byte[0];
+                } else if (toWorkingFiles) {
+                    newContent = readContents(join(CWD, fileName));
+                } else {
+                    newContent = Blob.getBlobContent(newBlobID);
+                }
+                Diff.writeUnified(oldBlobID == null ? null : fileName, oldContent,
+                        newBlobID == null ? null : fileName, newContent, DIFF_CONTEXT, out);
+            }
+            out.flush();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // Return the files of the current commit with the staged changes applied.
+    private static Map<String, String> stagedFiles(Commit currentCommit) {
+        StagingArea stagingArea = StagingArea.getStagingArea();
+        Map<String, String> files = new TreeMap<>(currentCommit.getFileNameToBlobID());
+        files.putAll(stagingArea.getStageForAddition());
+        for (String fileName : stagingArea.getStageForRemoval()) {
+            files.remove(fileName);
+        }
+        return files;
+    }
+
+    // Return the blob IDs of the working files among FILES and the staged
+    // and tracked files, skipping those that do not exist. The IDs come from
+    // the stat cache, so unchanged files are not read.
+    private static Map<String, String> workingFiles(Map<String, String> files,
+                                                    Commit currentCommit) {
+        Set<String> fileNames = new TreeSet<>(files.keySet());
+        fileNames.addAll(stagedFiles(currentCommit).keySet());
+        Map<String, String> workingFiles = new TreeMap<>();
+        for (String fileName : fileNames) {
+            if (join(CWD, fileName).isFile()) {
+                workingFiles.put(fileName, Blob.getBlobID(fileName));
+            }
+        }
+        return workingFiles;
+    }
+
+    // Return the files whose blob IDs differ between OLDFILES and NEWFILES,
+    // with their IDs on both sides, null where a file is absent.
+    private static SortedMap<String, String[]> diffFiles(Map<String, String> oldFiles,
+                                                         Map<String, String> newFiles) {
+        SortedMap<String, String[]> changes = new TreeMap<>();
+        for (Map.Entry<String, String> entry : oldFiles.entrySet()) {
+            String newBlobID = newFiles.get(entry.getKey());
+            if (!entry.getValue().equals(newBlobID)) {
+                changes.put(entry.getKey(), new String[] {entry.getValue(), newBlobID});
+            }
+        }
+        for (Map.Entry<String, String> entry : newFiles.entrySet()) {
+            if (!oldFiles.containsKey(entry.getKey())) {
+                changes.put(entry.getKey(), new String[] {null, entry.getValue()});
+            }
+        }
+        return changes;
+    }
+
+    // Return the commit with the full or abbreviated ID COMMITID, or exit
+    // if there is none.
+    private static Commit findCommitOrExit(String commitID) {
+        Commit commit;
+        if (commitID.length() < Commit.STANDARD_COMMIT_ID_LENGTH) {
+            commit = Commit.findCommitWithShortID(commitID);
+        } else {
+            commit = Commit.findCommit(commitID);
+        }
+        if (commit == null) {
+            throw error("No commit with that id exists.");
+        }
+        return commit;
+    }
+
+    // Pack all loose objects, and merge existing packs into one.
+    public static void gc() {
+        try (Trace.Phase phase = Trace.phase("repack")) {
+            COMMIT_STORE.repack();
+            TREE_STORE.repack();
+            BLOB_STORE.repack();
+            CHUNK_STORE.repack();
+        }
+    }
+
     public static void addRemote(String remoteName, String remotePath) {
         Remote remote = Remote.loadRemotes();
         remote.addRemote(remoteName, remotePath);
@@ -394,27 +669,35 @@ public class Repository implements Serializable {
     public static void pushRemote(String remoteName, String branchName) {
         Remote remote = Remote.loadRemotes();
         String remotePath = remote.getRemotePath(remoteName);
-        File remoteGitletDir = new File(remotePath);
+        String currentCommitID = Branch.getCurrentCommitID();
+        if (NetworkRemote.isURL(remotePath)) {
+            NetworkRemote.push(remotePath, branchName, currentCommitID);
+            return;
+        }
+        File remoteGitletDir = remoteDir(remotePath);
         if (!remoteGitletDir.exists()) {
-            System.out.println("Remote directory not found.");
-            System.exit(0);
+            throw error("Remote directory not found.");
         }
 
+        // A branch that does not exist on the remote yet is simply created.
         File remoteBranchFile = join(remoteGitletDir, "refs", "heads", branchName);
-        if (!remoteBranchFile.exists()) {
-            writeContents(remoteBranchFile, Commit.getInitialCommitID());
-        }
-
-        String currentCommitID = Branch.getCurrentCommitID();
-        String branchCommitID = readContentsAsString(remoteBranchFile);
-        String splitPointID = Branch.findSplitPoint(branchCommitID);
-        if (splitPointID == null || !splitPointID.equals(branchCommitID)) {
-            System.out.println("Please pull down remote changes before pushing.");
-            System.exit(0);
-        } else {
+        try (Locks.Held lock = Locks.hold(remoteGitletDir, Locks.branch(branchName), true)) {
+            if (remoteBranchFile.exists()) {
+                String branchCommitID = readContentsAsString(remoteBranchFile);
+                if (!CommitGraph.getCommitGraph().isAncestor(branchCommitID, currentCommitID)) {
+                    throw error("Please pull down remote changes before pushing.");
+                }
+            }
             Remote.copyCommitsToRemote(currentCommitID, remoteGitletDir);
+            Journal.writeAtomically(remoteGitletDir, remoteBranchFile, currentCommitID);
         }
-        writeContents(remoteBranchFile, currentCommitID);
+    }
+
+    // Return the .gitlet directory at the local remote path REMOTEPATH,
+    // which may be relative to the working directory.
+    private static File remoteDir(String remotePath) {
+        File dir = new File(remotePath);
+        return dir.isAbsolute() ? dir : join(CWD, remotePath);
     }
 
     // Fetch a remote branch and stores it to the local directory.
@@ -422,29 +705,51 @@ public class Repository implements Serializable {
     public static void fetchRemote(String remoteName, String branchName) {
         Remote remote = Remote.loadRemotes();
         String remotePath = remote.getRemotePath(remoteName);
-        File remoteGitletDir = new File(remotePath);
-        if (!remoteGitletDir.exists()) {
-            System.out.println("Remote directory not found.");
-            System.exit(0);
-        }
+        String remoteCurrentCommitID;
+        if (NetworkRemote.isURL(remotePath)) {
+            remoteCurrentCommitID = NetworkRemote.fetch(remotePath, branchName);
+        } else {
+            File remoteGitletDir = remoteDir(remotePath);
+            if (!remoteGitletDir.exists()) {
+                throw error("Remote directory not found.");
+            }
 
-        File remoteBranchFile = join(remoteGitletDir, "refs", "heads", branchName);
-        if (!remoteBranchFile.exists()) {
-            System.out.println("That remote does not have that branch.");
-            System.exit(0);
-        }
+            File remoteBranchFile = join(remoteGitletDir, "refs", "heads", branchName);
+            if (!remoteBranchFile.exists()) {
+                throw error("That remote does not have that branch.");
+            }
 
-        String remoteCurrentCommitID = readContentsAsString(remoteBranchFile);
-        Remote.copyCommitsFromRemote(remoteCurrentCommitID, remoteGitletDir);
+            remoteCurrentCommitID = readContentsAsString(remoteBranchFile);
+            Remote.copyCommitsFromRemote(remoteCurrentCommitID, remoteGitletDir);
+        }
 
         // Create the directory structure for the remote branch
         File localRemoteBranch = join(HEADS_DIR, remoteName + "_" + branchName);
-        writeContents(localRemoteBranch, remoteCurrentCommitID);
+        Journal.write(localRemoteBranch, remoteCurrentCommitID);
+    }
+
+    // Serve the repositories under the current directory to gitlet:// remotes
+    // on PORT, or on the default port if PORT is null, until killed.
+    public static void serve(String port) {
+        int portNumber = NetworkRemote.DEFAULT_PORT;
+        if (port != null) {
+            try {
+                portNumber = Integer.parseInt(port);
+            } catch (NumberFormatException excp) {
+                portNumber = -1;
+            }
+            if (portNumber < 0 || portNumber > 65535) {
+                throw error("Incorrect operands.");
+            }
+        }
+        Daemon.serve(CWD, portNumber);
     }
 
     // Pull a remote branch means fetch it first and merge the current branch to it.
     public static void pullRemote(String remoteName, String branchName) {
         fetchRemote(remoteName, branchName);
+        // The fetch stands on its own, even if the merge fails.
+        Journal.commit();
         String remoteBranchName = remoteName + "_" + branchName;
         merge(remoteBranchName);
     }
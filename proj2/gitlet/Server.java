@@ -0,0 +1,236 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static gitlet.Utils.*;
+
+/** Runs gitlet commands sent over a Unix domain socket in one long-lived
+ *  process, started by java gitlet.Main --server [SOCKET], so a command
+ *  costs neither the start of a JVM nor the loading of gitlet's classes,
+ *  and the objects read by one command are still cached for the next.
+ *  gitlet-client, next to the gitlet directory, sends the commands.
+ *
+ *  A request is the protocol magic and version, the client's working
+ *  directory and its arguments. The reply is a run of frames, each a kind
+ *  byte and an int: what the command printed to standard output or error,
+ *  that many bytes of it, and finally the exit code.
+ *
+ *  Commands run one at a time, each with System.out and System.err going
+ *  to its own client and with the stage, the stat cache, the journal and
+ *  the locks of the command before it dropped. A command that fails with a
+ *  gitlet error exits with 0, as java gitlet.Main does; one that fails
+ *  with any other exception exits with 1, its stack trace on standard
+ *  error. The environment, such as GITLET_CODEC, is the server's.
+ */
+public class Server {
+
+    /** Magic number at the start of a request. */
+    static final int PROTOCOL_MAGIC = 0x47535256; // "GSRV"
+    /** Version of the protocol spoken by this class. */
+    static final int PROTOCOL_VERSION = 1;
+    /** Kinds of reply frame. */
+    static final int STDOUT = 1;
+    static final int STDERR = 2;
+    static final int EXIT = 3;
+
+    /** Returns the socket used when none is given: GITLET_SOCKET, or
+     *  gitlet-USER.sock in the temporary directory. */
+    static File defaultSocket() {
+        String socket = System.getenv("GITLET_SOCKET");
+        if (socket != null) {
+            return new File(socket);
+        }
+        return new File(System.getProperty("java.io.tmpdir"),
+                "gitlet-" + System.getProperty("user.name") + ".sock");
+    }
+
+    /** Runs the commands sent to SOCKET until the process is killed. */
+    public static void serve(File socket) {
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socket.toPath());
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            if (socket.exists()) {
+                if (isServing(address)) {
+                    System.out.println("A gitlet server is already running on " + socket + ".");
+                    return;
+                }
+                // Left by a server that was killed.
+                Files.delete(socket.toPath());
+            }
+            server.bind(address);
+            socket.deleteOnExit();
+            System.out.println("Serving gitlet commands on " + socket + ".");
+            System.out.flush();
+            PrintStream stdout = System.out;
+            PrintStream stderr = System.err;
+            while (true) {
+                try (SocketChannel client = server.accept()) {
+                    handle(client);
+                } catch (IOException | RuntimeException excp) {
+                    stderr.println("gitlet server: " + excp);
+                } finally {
+                    System.setOut(stdout);
+                    System.setErr(stderr);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static boolean isServing(UnixDomainSocketAddress address) {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            return true;
+        } catch (IOException excp) {
+            return false;
+        }
+    }
+
+    /** Runs the command sent by CLIENT and sends back its output. */
+    private static void handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(client)));
+        try {
+            if (in.readInt() != PROTOCOL_MAGIC || in.readUnsignedByte() != PROTOCOL_VERSION) {
+                return;
+            }
+        } catch (EOFException excp) {
+            // A connection only made to see if this server is running.
+            return;
+        }
+        File cwd = new File(readString(in));
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i += 1) {
+            args[i] = readString(in);
+        }
+
+        PrintStream stdout = new PrintStream(new BufferedOutputStream(
+                new FrameOutputStream(out, STDOUT), 1 << 16), false, StandardCharsets.UTF_8);
+        PrintStream stderr = new PrintStream(new FrameOutputStream(out, STDERR), true,
+                StandardCharsets.UTF_8);
+        System.setOut(stdout);
+        System.setErr(stderr);
+        int exitCode = run(cwd, args);
+        stdout.flush();
+        stderr.flush();
+        synchronized (out) {
+            out.writeByte(EXIT);
+            out.writeInt(exitCode);
+            out.flush();
+        }
+    }
+
+    /** Runs the command in ARGS in the directory CWD, and returns its exit
+     *  code. */
+    private static int run(File cwd, String[] args) {
+        try {
+            if (!cwd.isAbsolute() || !cwd.isDirectory()) {
+                throw error("Working directory not found.");
+            }
+            if (args.length > 0 && (args[0].equals("serve") || args[0].equals("--server"))) {
+                throw error("Cannot serve from the gitlet server.");
+            }
+            Repository.setCWD(cwd);
+            Main.run(args);
+            return 0;
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+            return 0;
+        } catch (RuntimeException | Error excp) {
+            excp.printStackTrace();
+            return 1;
+        } finally {
+            Main.discardState();
+        }
+    }
+
+    /** Sends the command in ARGS to the server on SOCKET, to be run in CWD,
+     *  copies what it prints to OUT and ERR, and returns its exit code. */
+    static int send(File socket, File cwd, String[] args, OutputStream out, OutputStream err)
+            throws IOException {
+        try (SocketChannel channel = SocketChannel.open(
+                UnixDomainSocketAddress.of(socket.toPath()))) {
+            DataOutputStream request = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)));
+            request.writeInt(PROTOCOL_MAGIC);
+            request.writeByte(PROTOCOL_VERSION);
+            writeString(request, cwd.getAbsolutePath());
+            request.writeInt(args.length);
+            for (String arg : args) {
+                writeString(request, arg);
+            }
+            request.flush();
+
+            InputStream channelIn = Channels.newInputStream(channel);
+            DataInputStream reply = new DataInputStream(channelIn);
+            byte[] buffer = new byte[1 << 16];
+            while (true) {
+                int kind = reply.readUnsignedByte();
+                int length = reply.readInt();
+                if (kind == EXIT) {
+                    return length;
+                }
+                OutputStream target = kind == STDOUT ? out : err;
+                while (length > 0) {
+                    int n = reply.read(buffer, 0, Math.min(buffer.length, length));
+                    if (n < 0) {
+                        throw new IOException("Reply cut short.");
+                    }
+                    target.write(buffer, 0, n);
+                    length -= n;
+                }
+            }
+        }
+    }
+
+    /** Sends what is written to it as frames of one KIND. Several threads
+     *  of a command may print at once; each write makes a whole frame. */
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final int kind;
+
+        FrameOutputStream(DataOutputStream out, int kind) {
+            this.out = out;
+            this.kind = kind;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            synchronized (out) {
+                out.writeByte(kind);
+                out.writeInt(length);
+                out.write(bytes, offset, length);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+}
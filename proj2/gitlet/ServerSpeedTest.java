@@ -0,0 +1,132 @@
+package gitlet;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/** Compares the latency of gitlet commands run cold, each in a new JVM,
+ *  with the same commands run warm by a gitlet server: sent straight over
+ *  its socket, and through gitlet-client if CLIENT, its path, is given.
+ *  Each round adds and commits a file, then runs status and log, in a
+ *  repository of its own for each way of running.
+ *  Usage: java gitlet.ServerSpeedTest [ROUNDS] [CLIENT]
+ */
+public class ServerSpeedTest {
+
+    private static final String[] COMMANDS = {"add", "commit", "status", "log"};
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        File client = args.length > 1 ? new File(args[1]).getAbsoluteFile() : null;
+        String classPath = System.getProperty("java.class.path");
+        Path dir = Files.createTempDirectory("gitlet-speed");
+        File socket = dir.resolve("gitlet.sock").toFile();
+
+        Process server = new ProcessBuilder("java", "-cp", classPath, "gitlet.Main", "--server",
+                socket.getPath()).redirectErrorStream(true).start();
+        try {
+            // The server prints one line once it is listening.
+            new BufferedReader(new InputStreamReader(server.getInputStream(),
+                    StandardCharsets.UTF_8)).readLine();
+            System.out.printf("%d rounds of: %s%n", rounds, String.join(", ", COMMANDS));
+            System.out.printf("%-8s %10s %10s %10s %10s%n", "mode", "add ms", "commit ms",
+                    "status ms", "log ms");
+
+            File coldDir = Files.createDirectory(dir.resolve("cold")).toFile();
+            report("cold", run(rounds, coldDir, gitletArgs -> {
+                runProcess(coldDir, null, prepend(new String[] {"java", "-cp", classPath,
+                    "gitlet.Main"}, gitletArgs));
+            }));
+            File warmDir = Files.createDirectory(dir.resolve("warm")).toFile();
+            report("warm", run(rounds, warmDir, gitletArgs -> {
+                Server.send(socket, warmDir, gitletArgs, OutputStream.nullOutputStream(),
+                        OutputStream.nullOutputStream());
+            }));
+            if (client != null) {
+                File clientDir = Files.createDirectory(dir.resolve("client")).toFile();
+                report("client", run(rounds, clientDir, gitletArgs -> {
+                    runProcess(clientDir, socket, prepend(new String[] {client.getPath()},
+                            gitletArgs));
+                }));
+            }
+        } finally {
+            server.destroy();
+            server.waitFor();
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /** A way of running one gitlet command. */
+    private interface Runner {
+        void run(String[] args) throws IOException, InterruptedException;
+    }
+
+    /** Runs ROUNDS rounds of commands in the new repository REPO with
+     *  RUNNER, and returns the times taken by each command, in
+     *  milliseconds. */
+    private static Map<String, List<Double>> run(int rounds, File repo, Runner runner)
+            throws IOException, InterruptedException {
+        runner.run(new String[] {"init"});
+        Map<String, List<Double>> times = new LinkedHashMap<>();
+        for (String command : COMMANDS) {
+            times.put(command, new ArrayList<>());
+        }
+        for (int i = 0; i < rounds; i += 1) {
+            String fileName = "f" + (i % 5) + ".txt";
+            Files.writeString(new File(repo, fileName).toPath(), "round " + i + "\n");
+            String[][] commands = {
+                {"add", fileName}, {"commit", "round " + i}, {"status"}, {"log"}
+            };
+            for (String[] command : commands) {
+                long start = System.nanoTime();
+                runner.run(command);
+                times.get(command[0]).add((System.nanoTime() - start) / 1e6);
+            }
+        }
+        return times;
+    }
+
+    /** Runs COMMAND in DIR, with GITLET_SOCKET set to SOCKET if it is not
+     *  null, discarding its output. */
+    private static void runProcess(File dir, File socket, String[] command)
+            throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(command).directory(dir)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD);
+        if (socket != null) {
+            builder.environment().put("GITLET_SOCKET", socket.getPath());
+        }
+        builder.start().waitFor();
+    }
+
+    private static String[] prepend(String[] first, String[] rest) {
+        String[] all = Arrays.copyOf(first, first.length + rest.length);
+        System.arraycopy(rest, 0, all, first.length, rest.length);
+        return all;
+    }
+
+    /** Prints the median time of each command. */
+    private static void report(String mode, Map<String, List<Double>> times) {
+        System.out.printf("%-8s", mode);
+        for (List<Double> commandTimes : times.values()) {
+            List<Double> sorted = new ArrayList<>(commandTimes);
+            sorted.sort(null);
+            System.out.printf(" %10.1f", sorted.get(sorted.size() / 2));
+        }
+        System.out.println();
+    }
+}
@@ -1,71 +1,228 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.Serial;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import static gitlet.Utils.*;
 
 public class StagingArea implements Serializable {
 
+    /** Kept equal to the implicit value of the original serialized class,
+     *  so stage files written with Java serialization remain readable. */
+    @Serial
+    private static final long serialVersionUID = -6625539279090308672L;
+    /** The first two bytes of an encoded staging area. */
+    private static final int ENCODING_MAGIC = 0x4753; // "GS"
+    /** The version of the encoding written by encode. */
+    private static final int ENCODING_VERSION = 1;
+
     /** A map stores the file names along with their blobIDs */
     private Map<String, String> stageForAddition;
     /** A list stores the file names */
     private List<String> stageForRemoval;
+    /** True if the stage changed since it was loaded. */
+    private transient boolean changed;
+
+    /** The staging area of the current command, loaded on first use. */
+    private static StagingArea stagingArea;
 
     // If the file "stage" already exists, then read its content.
-    // Otherwise, create a new "stage" file.
+    // Otherwise, start with an empty stage, to be saved as a new "stage" file.
     private StagingArea() {
         if (Repository.GITLET_DIR.exists()) {
             File stageFile = join(Repository.GITLET_DIR, "stage");
             if (stageFile.exists()) {
-                StagingArea stagingArea = readObject(stageFile, StagingArea.class);
-                stageForAddition = stagingArea.stageForAddition;
-                stageForRemoval = stagingArea.stageForRemoval;
-                this.saveStagingArea();
+                decode(readContents(stageFile));
             } else {
-                stageForAddition = new HashMap<>();
+                stageForAddition = new TreeMap<>();
                 stageForRemoval = new ArrayList<>();
-                this.saveStagingArea();
+                changed = true;
             }
         }
     }
 
+    // The stage is read once per command and shared by everything the
+    // command does; saveIfChanged writes it back once at the end.
     public static StagingArea getStagingArea() {
-        return new StagingArea();
+        if (stagingArea == null) {
+            stagingArea = new StagingArea();
+        }
+        return stagingArea;
+    }
+
+    // Save the stage of the current command if it changed.
+    public static void saveIfChanged() {
+        if (stagingArea != null && stagingArea.changed
+                && Repository.GITLET_DIR.isDirectory()) {
+            File stageFile = join(Repository.GITLET_DIR, "stage");
+            Journal.write(stageFile, stagingArea.encode());
+            stagingArea.changed = false;
+        }
     }
 
-    public void saveStagingArea() {
-        File stageFile = join(Repository.GITLET_DIR, "stage");
-        writeObject(stageFile, this);
+    // Forget the stage of the current command, so the next command run in
+    // this process reads it again.
+    public static void reset() {
+        stagingArea = null;
     }
 
-    public void addFile(File fileToBeAdded, String currentCommitID) {
-        String fileName = fileToBeAdded.getName();
-        if (stageForRemoval.contains(fileName)) {
-            stageForRemoval.remove(fileName);
+    // Encode the stage as a magic number and version, the files staged for
+    // addition sorted by name with their raw blob IDs, then the files
+    // staged for removal.
+    private byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(ENCODING_MAGIC);
+            out.writeByte(ENCODING_VERSION);
+            TreeMap<String, String> sortedAdditions = new TreeMap<>(stageForAddition);
+            out.writeInt(sortedAdditions.size());
+            for (Map.Entry<String, String> entry : sortedAdditions.entrySet()) {
+                writeString(out, entry.getKey());
+                writeID(out, entry.getValue());
+            }
+            out.writeInt(stageForRemoval.size());
+            for (String fileName : stageForRemoval) {
+                writeString(out, fileName);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw error("Internal error encoding staging area.");
+        }
+    }
+
+    // Load the stage from DATA, written either by encode or, in older
+    // repositories, by Java serialization.
+    private void decode(byte[] data) {
+        if (isSerializedObject(data)) {
+            StagingArea stagingArea = deserialize(data, StagingArea.class);
+            stageForAddition = stagingArea.stageForAddition;
+            stageForRemoval = stagingArea.stageForRemoval;
+            return;
         }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readUnsignedShort() != ENCODING_MAGIC
+                    || in.readUnsignedByte() > ENCODING_VERSION) {
+                throw error("Unrecognized staging area format.");
+            }
+            stageForAddition = new TreeMap<>();
+            int additionCount = in.readInt();
+            for (int i = 0; i < additionCount; i += 1) {
+                String fileName = readString(in);
+                stageForAddition.put(fileName, readID(in));
+            }
+            stageForRemoval = new ArrayList<>();
+            int removalCount = in.readInt();
+            for (int i = 0; i < removalCount; i += 1) {
+                stageForRemoval.add(readString(in));
+            }
+        } catch (IOException excp) {
+            throw error("Corrupt staging area.");
+        }
+    }
 
+    public void addFile(File fileToBeAdded, String currentCommitID) {
+        addFiles(List.of(fileToBeAdded), currentCommitID);
+    }
+
+    // Stage the files FILESTOBEADDED. Hashing the files and storing their
+    // blobs are independent of each other, so with several files they are
+    // done on a pool of one thread per processor. The stage itself is only
+    // updated afterwards, on this thread, in the order of the files.
+    public void addFiles(List<File> filesToBeAdded, String currentCommitID) {
+        if (filesToBeAdded.isEmpty()) {
+            return;
+        }
         Commit currentCommit = Commit.findCommit(currentCommitID);
         Map<String, String> currentFileMap = currentCommit.getFileNameToBlobID();
 
-        // Check if the file added is identical to any file in currentFileMap
-        Blob newBlob = new Blob(readContents(fileToBeAdded));
-        String newBlobID = newBlob.getBlobID();
-        if (newBlobID.equals(currentFileMap.get(fileName))) {
-            if (stageForAddition.containsKey(fileName)) {
+        List<Blob> newBlobs = new ArrayList<>();
+        if (filesToBeAdded.size() == 1) {
+            newBlobs.add(makeBlob(filesToBeAdded.get(0), currentFileMap));
+        } else {
+            int threads = Math.min(filesToBeAdded.size(),
+                    Runtime.getRuntime().availableProcessors());
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<Blob>> futures = new ArrayList<>();
+                for (File file : filesToBeAdded) {
+                    futures.add(pool.submit(() -> makeBlob(file, currentFileMap)));
+                }
+                for (Future<Blob> future : futures) {
+                    newBlobs.add(future.get());
+                }
+            } catch (ExecutionException excp) {
+                if (excp.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) excp.getCause();
+                }
+                throw error("Internal error adding files: %s", excp.getCause());
+            } catch (InterruptedException excp) {
+                throw error("Interrupted while adding files.");
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        changed = true;
+        for (int i = 0; i < filesToBeAdded.size(); i += 1) {
+            String fileName = Repository.relativePath(filesToBeAdded.get(i));
+            String newBlobID = newBlobs.get(i).getBlobID();
+            stageForRemoval.remove(fileName);
+            // A file identical to its version in the current commit is
+            // not staged, and no longer staged if it was.
+            if (newBlobID.equals(currentFileMap.get(fileName))) {
                 stageForAddition.remove(fileName);
+            } else {
+                stageForAddition.put(fileName, newBlobID);
+            }
+        }
+    }
+
+    // Make a blob of FILE and store it, unless the current commit already
+    // tracks the same contents.
+    private static Blob makeBlob(File file, Map<String, String> currentFileMap) {
+        Blob newBlob = new Blob(file);
+        String fileName = Repository.relativePath(file);
+        if (!newBlob.getBlobID().equals(currentFileMap.get(fileName))) {
+            newBlob.saveBlob();
+        }
+        return newBlob;
+    }
+
+    // Stage the files ADDITIONS, by name with the IDs of blobs already
+    // stored, and stage the files REMOVALS for removal.
+    public void stageFiles(Map<String, String> additions, List<String> removals) {
+        changed = true;
+        for (Map.Entry<String, String> entry : additions.entrySet()) {
+            stageForRemoval.remove(entry.getKey());
+            stageForAddition.put(entry.getKey(), entry.getValue());
+        }
+        for (String fileName : removals) {
+            stageForAddition.remove(fileName);
+            if (!stageForRemoval.contains(fileName)) {
+                stageForRemoval.add(fileName);
             }
-            return;
         }
-        stageForAddition.put(fileName, newBlobID);
-        newBlob.saveBlob();
     }
 
     public void removeFile(File fileToBeRemoved, Map<String, String> currentFileMap) {
-        String fileName = fileToBeRemoved.getName();
+        String fileName = Repository.relativePath(fileToBeRemoved);
+        changed = true;
         if (stageForAddition.containsKey(fileName)) {
             stageForAddition.remove(fileName);
         }
@@ -74,12 +231,13 @@ public class StagingArea implements Serializable {
             String fileBlobID = currentFileMap.get(fileName);
             stageForRemoval.add(fileName);
             if (fileToBeRemoved.exists() && fileBlobID.equals(Blob.getBlobID(fileName))) {
-                restrictedDelete(fileName);
+                Repository.deleteWorkingFile(fileName);
             }
         }
     }
 
     public void clear() {
+        changed = true;
         stageForAddition.clear();
         stageForRemoval.clear();
     }
@@ -0,0 +1,209 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.*;
+
+/** Remembers the blob ID of each working file together with the file's
+ *  modification time, size and inode when it was hashed, like git's index.
+ *  As long as those stay the same the file is not read again, so status
+ *  and add only rehash files that actually changed.
+ *
+ *  The cache is saved in .gitlet/index. A file written by gitlet itself,
+ *  such as by checkout, is hashed the next time it is looked at, since its
+ *  entry would be made within the racy window anyway.
+ */
+public class StatCache {
+
+    /** The file the cache is saved in. */
+    private static final String INDEX_FILE_NAME = "index";
+    /** The first two bytes of the index file. */
+    private static final int ENCODING_MAGIC = 0x4749; // "GI"
+    /** The version of the encoding written by save. */
+    private static final int ENCODING_VERSION = 1;
+    /** A file modified less than this long before it was hashed may be
+     *  modified again without its modification time changing, on file
+     *  systems with coarse time stamps, so its entry is not trusted. */
+    private static final long RACY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    /** The cache of the current command, loaded on first use. */
+    private static StatCache statCache;
+
+    /** Cached entries by path relative to the working directory. */
+    private final Map<String, Entry> entries = new HashMap<>();
+    /** True if an entry was added or changed since the cache was loaded. */
+    private boolean changed;
+
+    private StatCache() {
+        File indexFile = join(Repository.GITLET_DIR, INDEX_FILE_NAME);
+        if (indexFile.isFile()) {
+            try {
+                decode(readContents(indexFile));
+            } catch (GitletException | IllegalArgumentException excp) {
+                // The index is only a cache; start over if it is unreadable.
+                entries.clear();
+            }
+        }
+    }
+
+    public static synchronized StatCache getStatCache() {
+        if (statCache == null) {
+            statCache = new StatCache();
+        }
+        return statCache;
+    }
+
+    // Save the cache of the current command if it has been used and changed,
+    // without the entries of files that no longer exist.
+    public static void saveIfChanged() {
+        if (statCache != null && statCache.changed
+                && Repository.GITLET_DIR.isDirectory()) {
+            statCache.entries.keySet().removeIf(
+                    path -> !join(Repository.CWD, path).isFile());
+            Journal.write(join(Repository.GITLET_DIR, INDEX_FILE_NAME), statCache.encode());
+            statCache.changed = false;
+        }
+    }
+
+    // Forget the cache of the current command, so the next command run in
+    // this process reads it again.
+    public static void reset() {
+        statCache = null;
+    }
+
+    // Return the blob ID of the current contents of FILE, hashing it only
+    // if its stat data no longer matches the cached entry.
+    // May be called from several threads at once; files are hashed
+    // outside the lock.
+    public String getBlobID(File file) {
+        String path = Repository.relativePath(file);
+        Stat stat = Stat.of(file);
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.stat.equals(stat)
+                    && stat.modifiedNanos + RACY_WINDOW_NANOS <= entry.checkedNanos) {
+                Trace.count("stat cache hits", 1);
+                return entry.blobID;
+            }
+        }
+        Trace.count("stat cache misses", 1);
+        long checkedNanos = nowNanos();
+        String blobID = Blob.hashFile(file);
+        synchronized (this) {
+            entries.put(path, new Entry(stat, blobID, checkedNanos));
+            changed = true;
+        }
+        return blobID;
+    }
+
+    private static long nowNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    }
+
+    private byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(ENCODING_MAGIC);
+            out.writeByte(ENCODING_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                writeString(out, mapEntry.getKey());
+                out.writeLong(entry.stat.modifiedNanos);
+                out.writeLong(entry.stat.size);
+                writeString(out, entry.stat.fileKey);
+                writeID(out, entry.blobID);
+                out.writeLong(entry.checkedNanos);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw error("Internal error encoding index.");
+        }
+    }
+
+    private void decode(byte[] data) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readUnsignedShort() != ENCODING_MAGIC
+                    || in.readUnsignedByte() > ENCODING_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i += 1) {
+                String path = readString(in);
+                Stat stat = new Stat(in.readLong(), in.readLong(), readString(in));
+                String blobID = readID(in);
+                entries.put(path, new Entry(stat, blobID, in.readLong()));
+            }
+        } catch (IOException excp) {
+            throw error("Corrupt index.");
+        }
+    }
+
+    /** The stat data of a file that tells whether it may have changed. */
+    private static class Stat {
+        private final long modifiedNanos;
+        private final long size;
+        /** The inode, or whatever else identifies the file on this system. */
+        private final String fileKey;
+
+        Stat(long modifiedNanos, long size, String fileKey) {
+            this.modifiedNanos = modifiedNanos;
+            this.size = size;
+            this.fileKey = fileKey;
+        }
+
+        static Stat of(File file) {
+            try {
+                BasicFileAttributes attributes =
+                        Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                Object fileKey = attributes.fileKey();
+                return new Stat(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                        attributes.size(), fileKey == null ? "" : fileKey.toString());
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Stat)) {
+                return false;
+            }
+            Stat stat = (Stat) other;
+            return modifiedNanos == stat.modifiedNanos && size == stat.size
+                    && fileKey.equals(stat.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(modifiedNanos) * 31 + Long.hashCode(size);
+        }
+    }
+
+    /** A cached blob ID, with the stat data of the file when it was hashed
+     *  and the time it was hashed. */
+    private static class Entry {
+        private final Stat stat;
+        private final String blobID;
+        private final long checkedNanos;
+
+        Entry(Stat stat, String blobID, long checkedNanos) {
+            this.stat = stat;
+            this.blobID = blobID;
+            this.checkedNanos = checkedNanos;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package gitlet;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Where a gitlet command spends its time, shown when GITLET_TRACE is set.
+ *
+ *  A command is split into phases, such as taking its locks, diffing trees
+ *  or writing the journal, each timed with
+ *
+ *      try (Trace.Phase phase = Trace.phase("diff trees")) {
+ *          ...
+ *      }
+ *
+ *  and counters, such as objects read and written, bytes hashed, cache
+ *  hits and fsyncs, are added to with count. Phases may nest, and run on
+ *  several threads at once; the time of a phase includes the phases run
+ *  inside it.
+ *
+ *  At the end of each command a summary goes to standard error: a table
+ *  if GITLET_TRACE is "table" or any other value, or one line of JSON if
+ *  it is "json", so a series of commands can be collected with 2>> and
+ *  compared. GITLET_CACHE_STATS, which used to print the cache statistics
+ *  alone, now shows the table. Without either, phases and counters cost a
+ *  test of a constant.
+ */
+public class Trace {
+
+    /** The output format, or null if tracing is off. */
+    private static final String FORMAT = format();
+    private static final boolean ENABLED = FORMAT != null;
+
+    /** The phase returned while tracing is off, which records nothing. */
+    private static final Phase NO_PHASE = new Phase(null);
+
+    /** The command being traced. */
+    private static List<String> command = new ArrayList<>();
+    /** When the command started, by System.nanoTime. */
+    private static long startNanos;
+    /** The phases of the command, in the order they were first entered. */
+    private static final Map<String, long[]> phases = new LinkedHashMap<>();
+    /** The counters of the command, by name. */
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private static String format() {
+        String trace = System.getenv("GITLET_TRACE");
+        if (trace == null || trace.isEmpty() || trace.equals("0")) {
+            return System.getenv("GITLET_CACHE_STATS") != null ? "table" : null;
+        }
+        return trace.equals("json") ? "json" : "table";
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /** Starts tracing the command in ARGS, dropping what was traced
+     *  before. */
+    static synchronized void start(String... args) {
+        if (!ENABLED) {
+            return;
+        }
+        command = List.of(args);
+        phases.clear();
+        counters.clear();
+        startNanos = System.nanoTime();
+    }
+
+    /** Starts timing the phase NAME, until the returned phase is closed. */
+    public static Phase phase(String name) {
+        if (!ENABLED) {
+            return NO_PHASE;
+        }
+        synchronized (Trace.class) {
+            phases.computeIfAbsent(name, n -> new long[2]);
+        }
+        return new Phase(name);
+    }
+
+    /** Adds AMOUNT to the counter NAME. */
+    public static void count(String name, long amount) {
+        if (ENABLED) {
+            counters.computeIfAbsent(name, n -> new LongAdder()).add(amount);
+        }
+    }
+
+    private static synchronized void record(String name, long nanos) {
+        long[] phase = phases.computeIfAbsent(name, n -> new long[2]);
+        phase[0] += 1;
+        phase[1] += nanos;
+    }
+
+    /** Prints the summary of the command traced since start to standard
+     *  error. */
+    static synchronized void report() {
+        if (!ENABLED) {
+            return;
+        }
+        double totalMillis = (System.nanoTime() - startNanos) / 1e6;
+        Map<String, Long> sortedCounters = new TreeMap<>();
+        counters.forEach((name, value) -> sortedCounters.put(name, value.sum()));
+        PrintStream err = System.err;
+        // Numbers are written the same in every locale, so the output can be
+        // parsed.
+        if (FORMAT.equals("json")) {
+            StringBuilder json = new StringBuilder("{\"command\":[");
+            for (int i = 0; i < command.size(); i += 1) {
+                json.append(i == 0 ? "" : ",").append(quote(command.get(i)));
+            }
+            json.append(String.format(Locale.ROOT, "],\"ms\":%.3f,\"phases\":{", totalMillis));
+            String separator = "";
+            for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+                json.append(separator).append(quote(phase.getKey()))
+                        .append(String.format(Locale.ROOT, ":{\"calls\":%d,\"ms\":%.3f}",
+                                phase.getValue()[0], phase.getValue()[1] / 1e6));
+                separator = ",";
+            }
+            json.append("},\"counters\":{");
+            separator = "";
+            for (Map.Entry<String, Long> counter : sortedCounters.entrySet()) {
+                json.append(separator).append(quote(counter.getKey())).append(":")
+                        .append(counter.getValue());
+                separator = ",";
+            }
+            err.println(json.append("}}"));
+        } else {
+            err.printf(Locale.ROOT, "gitlet trace: %s (%.1f ms)%n", String.join(" ", command),
+                    totalMillis);
+            err.printf(Locale.ROOT, "  %-36s %8s %10s%n", "phase", "calls", "ms");
+            for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+                err.printf(Locale.ROOT, "  %-36s %8d %10.1f%n", phase.getKey(),
+                        phase.getValue()[0], phase.getValue()[1] / 1e6);
+            }
+            err.printf(Locale.ROOT, "  %-36s %19s%n", "counter", "value");
+            for (Map.Entry<String, Long> counter : sortedCounters.entrySet()) {
+                err.printf(Locale.ROOT, "  %-36s %19d%n", counter.getKey(), counter.getValue());
+            }
+        }
+        err.flush();
+    }
+
+    /** Returns S as a JSON string. */
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i += 1) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /** A phase being timed, recorded when closed. */
+    public static class Phase implements AutoCloseable {
+        private final String name;
+        private final long startNanos;
+
+        private Phase(String name) {
+            this.name = name;
+            this.startNanos = name == null ? 0 : System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            if (name != null) {
+                record(name, System.nanoTime() - startNanos);
+            }
+        }
+    }
+}
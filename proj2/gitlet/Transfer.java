@@ -0,0 +1,618 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/** Copies a commit and its history from one repository to another, as
+ *  push and fetch do.
+ *
+ *  First the two sides negotiate: the history of the wanted commit is
+ *  walked back, without recursion, until it reaches commits the
+ *  destination already has, and the trees, blobs and chunks of the
+ *  missing commits are collected the same way, skipping whole subtrees
+ *  the destination has. The missing objects are then copied in an order
+ *  where each comes before anything that refers to it, so an object in
+ *  the destination always has everything it refers to there too.
+ *
+ *  Between repositories in the same file system the objects are linked
+ *  or copied file to file (see ObjectStore.copyTo) and never pass through
+ *  the heap. An interrupted copy keeps the objects already copied, and the
+ *  next one starts where it stopped.
+ *
+ *  When the two repositories are not in the same file system, the sender
+ *  cannot look into the receiver's stores. It is told the commits at the
+ *  tips of the receiver's branches instead, and works out what the
+ *  receiver has from them; see Advertised. The missing objects travel as
+ *  one stream of records, ended by an END byte, and are written one at a
+ *  time into a transfer pack in the receiver's .gitlet/transfer directory,
+ *  which is unpacked into its stores and deleted at the end. A transfer
+ *  that is interrupted leaves its pack behind; the next transfer of the
+ *  same commit keeps the complete records of that pack and only sends the
+ *  objects that are not in it yet.
+ */
+public class Transfer {
+
+    /** Kinds of object in a transfer pack. */
+    static final int COMMIT = 0;
+    static final int TREE = 1;
+    static final int BLOB = 2;
+    static final int CHUNK = 3;
+    /** Marks the end of a stream of records. */
+    static final int END = 0xFF;
+
+    /** The directory, under .gitlet, holding transfer packs. */
+    private static final String TRANSFER_DIR_NAME = "transfer";
+    /** Magic number at the start of a transfer pack. */
+    private static final int PACK_MAGIC = 0x47584652; // "GXFR"
+    /** Version of the transfer pack format written by this class. */
+    private static final int FORMAT_VERSION = 1;
+    /** Size of the pack header: magic and version. */
+    static final int HEADER_SIZE = 8;
+
+    /** Copies the commit TIPID and everything it refers to from the
+     *  repository in FROMGITLETDIR to the one in TOGITLETDIR. */
+    public static void copy(String tipID, File fromGitletDir, File toGitletDir) {
+        Stores from = new Stores(fromGitletDir);
+        Stores to = new Stores(toGitletDir);
+        List<ObjectRef> wanted = negotiate(tipID, from, to);
+        if (wanted.isEmpty()) {
+            return;
+        }
+        // The commits are recorded in the message index first, so an
+        // interrupted copy cannot leave commits that have no record.
+        List<String> commitIDs = new ArrayList<>();
+        List<String> commitMessages = new ArrayList<>();
+        for (ObjectRef ref : wanted) {
+            if (ref.kind == COMMIT) {
+                commitIDs.add(ref.id);
+                commitMessages.add(Commit.decode(ref.id, from.commits.read(ref.id)).getMessage());
+            }
+        }
+        MessageIndex.addCopied(toGitletDir, commitIDs, commitMessages);
+        Progress progress = new Progress("Copying objects", wanted.size());
+        int done = 0;
+        for (ObjectRef ref : wanted) {
+            if (ref.kind == BLOB) {
+                // A blob record is small: the contents of a small file, or
+                // the chunk IDs of a large one.
+                byte[] data = from.blobs.read(ref.id);
+                if (data != null) {
+                    for (String chunkID : Blob.getChunkIDs(ref.id, data)) {
+                        copyObject(from.chunks, to.chunks, chunkID);
+                    }
+                }
+            }
+            copyObject(from.get(ref.kind), to.get(ref.kind), ref.id);
+            done += 1;
+            progress.update(done);
+        }
+        progress.finish();
+    }
+
+    private static void copyObject(ObjectStore from, ObjectStore to, String id) {
+        if (!from.copyTo(id, to)) {
+            throw error("Missing object: %s", id);
+        }
+    }
+
+    /** Returns the pack in GITLETDIR that receives the commit TIPID. */
+    static File packFile(File gitletDir, String tipID) {
+        return join(gitletDir, TRANSFER_DIR_NAME, "incoming-" + tipID + ".pack");
+    }
+
+    /** Returns the objects reachable from the commit TIPID in FROM that the
+     *  receiver does not HAVE, each after every object it refers to. Chunks
+     *  are not listed; they are sent along with their blobs. */
+    static List<ObjectRef> negotiate(String tipID, Stores from, Have have) {
+        List<ObjectRef> wanted = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        // Walk the history depth first with an explicit stack. A commit is
+        // listed when it comes off the stack the second time, after its
+        // parents.
+        Set<String> expanded = new HashSet<>();
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(tipID);
+        while (!stack.isEmpty()) {
+            String commitID = stack.peek();
+            if (seen.contains(commitID) || have.hasCommit(commitID)) {
+                stack.pop();
+                continue;
+            }
+            Commit commit = readCommit(from, commitID);
+            if (expanded.add(commitID)) {
+                for (String parentID : parents(commit)) {
+                    if (!seen.contains(parentID)) {
+                        stack.push(parentID);
+                    }
+                }
+                continue;
+            }
+            stack.pop();
+            seen.add(commitID);
+            String treeID = commit.getStoredTreeID();
+            if (treeID != null) {
+                addTree(treeID, from, have, seen, wanted);
+            } else {
+                for (String blobID : commit.getFileNameToBlobID().values()) {
+                    addBlob(blobID, have, seen, wanted);
+                }
+            }
+            wanted.add(new ObjectRef(COMMIT, commitID));
+        }
+        return wanted;
+    }
+
+    private static Commit readCommit(Stores stores, String commitID) {
+        byte[] data = stores.commits.read(commitID);
+        if (data == null) {
+            throw error("Missing commit: %s", commitID);
+        }
+        return Commit.decode(commitID, data);
+    }
+
+    private static List<String> parents(Commit commit) {
+        List<String> parents = new ArrayList<>(2);
+        if (commit.getParentCommitID() != null) {
+            parents.add(commit.getParentCommitID());
+        }
+        if (commit.getSecondParentCommitID() != null) {
+            parents.add(commit.getSecondParentCommitID());
+        }
+        return parents;
+    }
+
+    private static Tree readTree(Stores stores, String treeID) {
+        byte[] data = stores.trees.read(treeID);
+        if (data == null) {
+            throw error("Missing tree: %s", treeID);
+        }
+        return Tree.decode(treeID, data);
+    }
+
+    /** Adds the tree TREEID and everything under it that the receiver does
+     *  not HAVE to WANTED, subtrees before the trees that contain them. */
+    private static void addTree(String rootID, Stores from, Have have,
+                                Set<String> seen, List<ObjectRef> wanted) {
+        Deque<String> stack = new ArrayDeque<>();
+        Set<String> expanded = new HashSet<>();
+        stack.push(rootID);
+        while (!stack.isEmpty()) {
+            String treeID = stack.peek();
+            if (seen.contains(treeID) || have.hasObject(TREE, treeID)) {
+                stack.pop();
+                continue;
+            }
+            if (expanded.add(treeID)) {
+                for (Tree.Entry entry : readTree(from, treeID).getEntries().values()) {
+                    if (entry.isTree()) {
+                        stack.push(entry.getID());
+                    } else {
+                        addBlob(entry.getID(), have, seen, wanted);
+                    }
+                }
+                continue;
+            }
+            stack.pop();
+            seen.add(treeID);
+            wanted.add(new ObjectRef(TREE, treeID));
+        }
+    }
+
+    private static void addBlob(String blobID, Have have, Set<String> seen,
+                                List<ObjectRef> wanted) {
+        if (seen.add(blobID) && !have.hasObject(BLOB, blobID)) {
+            wanted.add(new ObjectRef(BLOB, blobID));
+        }
+    }
+
+    /** Writes the objects WANTED from FROM, and the chunks of their blobs
+     *  the receiver does not HAVE, to OUT, reading one object at a time.
+     *  Objects in RECEIVED, which the receiver kept from an interrupted
+     *  transfer, are left out. */
+    static void send(List<ObjectRef> wanted, Stores from, Have have, Set<String> received,
+                     DataOutputStream out, Progress progress) throws IOException {
+        int done = 0;
+        for (ObjectRef ref : wanted) {
+            if (!received.contains(ref.id)) {
+                byte[] data = from.get(ref.kind).read(ref.id);
+                if (ref.kind == BLOB && data != null) {
+                    for (String chunkID : Blob.getChunkIDs(ref.id, data)) {
+                        if (!received.contains(chunkID) && !have.hasObject(CHUNK, chunkID)) {
+                            writeRecord(out, CHUNK, chunkID, from.chunks.read(chunkID));
+                            received.add(chunkID);
+                        }
+                    }
+                }
+                writeRecord(out, ref.kind, ref.id, data);
+                received.add(ref.id);
+            }
+            done += 1;
+            progress.update(done);
+        }
+        out.flush();
+        progress.finish();
+    }
+
+    private static void writeRecord(DataOutputStream out, int kind, String id, byte[] data)
+            throws IOException {
+        if (data == null) {
+            throw error("Missing object: %s", id);
+        }
+        out.writeByte(kind);
+        writeID(out, id);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /** Copies the records of IN, up to its END byte, to PACK. PROGRESS
+     *  counts every record but the chunks, as send does. */
+    static void receive(DataInputStream in, PackWriter pack, Progress progress)
+            throws IOException {
+        int done = 0;
+        for (int kind = in.readUnsignedByte(); kind != END; kind = in.readUnsignedByte()) {
+            String id = readID(in);
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            writeRecord(pack.getOutput(), kind, id, data);
+            if (kind != CHUNK) {
+                done += 1;
+                progress.update(done);
+            }
+        }
+        progress.finish();
+    }
+
+    /** Adds the IDs of the complete records in PACKFILE to IDS and returns
+     *  the length of the pack up to the end of the last one, or 0 if there
+     *  is no usable pack. */
+    private static long scan(File packFile, Set<String> ids) {
+        if (!packFile.isFile()) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(packFile)))) {
+            if (in.readInt() != PACK_MAGIC || in.readInt() != FORMAT_VERSION) {
+                return 0;
+            }
+            long fileLength = packFile.length();
+            long length = HEADER_SIZE;
+            byte[] raw = new byte[ObjectStore.RAW_ID_LENGTH];
+            while (true) {
+                try {
+                    in.readUnsignedByte();
+                    in.readFully(raw);
+                    int size = in.readInt();
+                    // Skipping does not notice the end of the file, so a
+                    // record is only complete if it ends within the pack.
+                    long end = length + 1 + raw.length + 4 + size;
+                    if (size < 0 || end > fileLength) {
+                        break;
+                    }
+                    in.skipNBytes(size);
+                    ids.add(ObjectStore.fromRawID(raw));
+                    length = end;
+                } catch (EOFException excp) {
+                    break;
+                }
+            }
+            return length;
+        } catch (IOException excp) {
+            return 0;
+        }
+    }
+
+    /** Writes every object in PACKFILE into the store of its kind in TO,
+     *  in the order they were sent. */
+    static void unpack(File packFile, Stores to) {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(packFile)))) {
+            if (in.readInt() != PACK_MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw error("Corrupt transfer pack %s.", packFile.getName());
+            }
+            List<String> commitIDs = new ArrayList<>();
+            List<String> commitMessages = new ArrayList<>();
+            while (in.available() > 0) {
+                int kind = in.readUnsignedByte();
+                String id = readID(in);
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                to.get(kind).write(id, data);
+                if (kind == COMMIT) {
+                    commitIDs.add(id);
+                    commitMessages.add(Commit.decode(id, data).getMessage());
+                }
+            }
+            // The pack is only deleted after this, so commits unpacked by an
+            // interrupted unpack are recorded when it is unpacked again.
+            MessageIndex.addCopied(to.gitletDir, commitIDs, commitMessages);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** What the receiving side of a transfer already has. */
+    interface Have {
+        boolean hasCommit(String commitID);
+
+        /** Returns true if the receiver has the tree, blob or chunk ID of
+         *  the given KIND. */
+        boolean hasObject(int kind, String id);
+    }
+
+    /** One object to transfer: its kind and its ID. */
+    static class ObjectRef {
+        private final int kind;
+        private final String id;
+
+        ObjectRef(int kind, String id) {
+            this.kind = kind;
+            this.id = id;
+        }
+    }
+
+    /** The object stores of one .gitlet directory. As a Have, the stores
+     *  of a receiver in the same file system. */
+    static class Stores implements Have {
+        private final File gitletDir;
+        private final ObjectStore commits;
+        private final ObjectStore trees;
+        private final ObjectStore blobs;
+        private final ObjectStore chunks;
+
+        Stores(File gitletDir) {
+            this.gitletDir = gitletDir;
+            commits = new ObjectStore(join(gitletDir, "commits"));
+            trees = new ObjectStore(join(gitletDir, "trees"));
+            blobs = new ObjectStore(join(gitletDir, "blobs"));
+            chunks = new ObjectStore(join(gitletDir, "chunks"));
+        }
+
+        ObjectStore get(int kind) {
+            switch (kind) {
+                case COMMIT:
+                    return commits;
+                case TREE:
+                    return trees;
+                case BLOB:
+                    return blobs;
+                case CHUNK:
+                    return chunks;
+                default:
+                    throw error("Unknown object kind %d.", kind);
+            }
+        }
+
+        @Override
+        public boolean hasCommit(String commitID) {
+            return commits.contains(commitID);
+        }
+
+        @Override
+        public boolean hasObject(int kind, String id) {
+            return get(kind).contains(id);
+        }
+    }
+
+    /** What a remote receiver has, as far as the sender can tell from the
+     *  commits at the tips of the receiver's branches.
+     *
+     *  The receiver has every ancestor of its tips. Starting from the
+     *  wanted commit and from the tips the sender also knows, the history
+     *  is walked newest first, marking what can be reached from each, until
+     *  everything left to walk is known to be on the receiver. The trees
+     *  and blobs of the receiver's commits just below the missing ones are
+     *  then taken as present, so unchanged files are not sent again. Other
+     *  objects the receiver happens to have may be sent anyway; storing
+     *  them twice is harmless.
+     */
+    static class Advertised implements Have {
+        private static final int WANTED = 1;
+        private static final int HAD = 2;
+
+        private final Stores from;
+        private final Map<String, Integer> flags = new HashMap<>();
+        private final Map<String, Commit> commits = new HashMap<>();
+        private final Set<String> objects = new HashSet<>();
+
+        Advertised(String tipID, Collection<String> receiverTips, Stores from) {
+            this.from = from;
+            paint(tipID, receiverTips);
+            for (Map.Entry<String, Integer> entry : flags.entrySet()) {
+                if (entry.getValue() == WANTED) {
+                    for (String parentID : parents(commits.get(entry.getKey()))) {
+                        if (hasCommit(parentID)) {
+                            addObjects(commits.get(parentID));
+                        }
+                    }
+                }
+            }
+        }
+
+        private void paint(String tipID, Collection<String> receiverTips) {
+            PriorityQueue<String> queue = new PriorityQueue<>(Comparator.comparingLong(
+                    (String id) -> commits.get(id).getTimeStamp().getTime()).reversed());
+            // The number of queued commits not known to be on the receiver.
+            int[] interesting = {0};
+            Set<String> queued = new HashSet<>();
+            mark(tipID, WANTED, queue, queued, interesting);
+            for (String receiverTip : receiverTips) {
+                if (from.commits.contains(receiverTip)) {
+                    mark(receiverTip, HAD, queue, queued, interesting);
+                }
+            }
+            while (interesting[0] > 0) {
+                String commitID = queue.poll();
+                queued.remove(commitID);
+                int flag = flags.get(commitID);
+                if ((flag & HAD) == 0) {
+                    interesting[0] -= 1;
+                }
+                for (String parentID : parents(commits.get(commitID))) {
+                    if (from.commits.contains(parentID)) {
+                        mark(parentID, flag, queue, queued, interesting);
+                    }
+                }
+            }
+        }
+
+        private void mark(String commitID, int flag, PriorityQueue<String> queue,
+                          Set<String> queued, int[] interesting) {
+            int old = flags.getOrDefault(commitID, 0);
+            if ((old | flag) == old) {
+                return;
+            }
+            flags.put(commitID, old | flag);
+            commits.computeIfAbsent(commitID, id -> readCommit(from, id));
+            if (queued.contains(commitID)) {
+                if ((old & HAD) == 0 && (flag & HAD) != 0) {
+                    interesting[0] -= 1;
+                }
+            } else {
+                queued.add(commitID);
+                queue.add(commitID);
+                if (((old | flag) & HAD) == 0) {
+                    interesting[0] += 1;
+                }
+            }
+        }
+
+        /** Adds the trees and blobs of COMMIT to the objects the receiver
+         *  has. */
+        private void addObjects(Commit commit) {
+            String rootID = commit.getStoredTreeID();
+            if (rootID == null) {
+                objects.addAll(commit.getFileNameToBlobID().values());
+                return;
+            }
+            Deque<String> stack = new ArrayDeque<>();
+            stack.push(rootID);
+            while (!stack.isEmpty()) {
+                String treeID = stack.pop();
+                if (!objects.add(treeID)) {
+                    continue;
+                }
+                for (Tree.Entry entry : readTree(from, treeID).getEntries().values()) {
+                    if (entry.isTree()) {
+                        stack.push(entry.getID());
+                    } else {
+                        objects.add(entry.getID());
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean hasCommit(String commitID) {
+            return (flags.getOrDefault(commitID, 0) & HAD) != 0;
+        }
+
+        @Override
+        public boolean hasObject(int kind, String id) {
+            return kind != CHUNK && objects.contains(id);
+        }
+    }
+
+    /** A transfer pack being received. The complete records left in it by
+     *  an interrupted transfer are kept, and new records are appended. */
+    static class PackWriter implements Closeable {
+        private final Set<String> received = new HashSet<>();
+        private final RandomAccessFile file;
+        private final DataOutputStream out;
+
+        PackWriter(File packFile) throws IOException {
+            long validLength = scan(packFile, received);
+            packFile.getParentFile().mkdirs();
+            file = new RandomAccessFile(packFile, "rw");
+            file.setLength(validLength);
+            file.seek(validLength);
+            out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(file.getChannel())));
+            if (validLength == 0) {
+                out.writeInt(PACK_MAGIC);
+                out.writeInt(FORMAT_VERSION);
+            }
+        }
+
+        /** Returns the IDs of the objects already in the pack. */
+        Set<String> getReceived() {
+            return received;
+        }
+
+        DataOutputStream getOutput() {
+            return out;
+        }
+
+        /** Writes out what is buffered and forces it to disk, so that the
+         *  pack can be unpacked, or resumed after a crash. */
+        @Override
+        public void close() throws IOException {
+            try {
+                out.flush();
+                file.getChannel().force(true);
+                Trace.count("fsyncs", 1);
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    /** Reports how far a transfer has got, on the terminal only, so that
+     *  the output of a command run by a script stays the same. */
+    static class Progress {
+        private final String label;
+        private final int total;
+        private final boolean enabled;
+        private int lastPercent = -1;
+
+        Progress(String label, int total) {
+            this(label, total, System.console() != null);
+        }
+
+        private Progress(String label, int total, boolean enabled) {
+            this.label = label;
+            this.total = total;
+            this.enabled = enabled;
+        }
+
+        /** Returns a Progress that reports nothing. */
+        static Progress quiet() {
+            return new Progress(null, 0, false);
+        }
+
+        void update(int done) {
+            int percent = total == 0 ? 100 : (int) (100L * Math.min(done, total) / total);
+            if (enabled && percent != lastPercent) {
+                lastPercent = percent;
+                System.err.printf("\r%s: %3d%% (%d/%d)", label, percent, done, total);
+            }
+        }
+
+        void finish() {
+            if (enabled && lastPercent >= 0) {
+                System.err.println(", done.");
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package gitlet;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TransferTest {
+
+    /** Size of a record holding N bytes: kind, raw ID, length, data. */
+    private static long recordSize(int n) {
+        return 1 + ObjectStore.RAW_ID_LENGTH + 4 + n;
+    }
+
+    private static byte[] contents(int n, int seed) {
+        byte[] data = new byte[n];
+        for (int i = 0; i < n; i += 1) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] data) throws IOException {
+        out.writeByte(Transfer.BLOB);
+        Utils.writeID(out, Utils.sha1((Object) data));
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /** Writes a pack holding FIRST and SECOND, then cuts it to KEEP bytes
+     *  into the record of SECOND, and resumes it. */
+    private static void checkResume(byte[] first, byte[] second, long keep) throws IOException {
+        File gitletDir = Files.createTempDirectory("gitlet-transfer").toFile();
+        File packFile = new File(new File(gitletDir, "transfer"), "test.pack");
+        try (Transfer.PackWriter pack = new Transfer.PackWriter(packFile)) {
+            writeRecord(pack.getOutput(), first);
+            writeRecord(pack.getOutput(), second);
+        }
+        long firstEnd = Transfer.HEADER_SIZE + recordSize(first.length);
+        try (RandomAccessFile file = new RandomAccessFile(packFile, "rw")) {
+            file.setLength(firstEnd + keep);
+        }
+
+        try (Transfer.PackWriter pack = new Transfer.PackWriter(packFile)) {
+            Set<String> received = pack.getReceived();
+            assertEquals(Set.of(Utils.sha1((Object) first)), received);
+            assertEquals(firstEnd, packFile.length());
+            writeRecord(pack.getOutput(), second);
+        }
+        assertEquals(firstEnd + recordSize(second.length), packFile.length());
+
+        Transfer.Stores stores = new Transfer.Stores(gitletDir);
+        Transfer.unpack(packFile, stores);
+        ObjectStore blobs = stores.get(Transfer.BLOB);
+        assertTrue(Arrays.equals(first, blobs.read(Utils.sha1((Object) first))));
+        assertTrue(Arrays.equals(second, blobs.read(Utils.sha1((Object) second))));
+    }
+
+    @Test
+    public void resumesPackCutInsideRecordData() throws IOException {
+        checkResume(contents(100, 1), contents(100000, 2), recordSize(0) + 10);
+    }
+
+    @Test
+    public void resumesPackCutRightAfterRecordLength() throws IOException {
+        checkResume(contents(100, 1), contents(100000, 2), recordSize(0));
+    }
+
+    @Test
+    public void resumesPackCutInsideRecordHeader() throws IOException {
+        checkResume(contents(100, 1), contents(100000, 2), 7);
+    }
+}
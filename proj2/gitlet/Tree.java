@@ -0,0 +1,265 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** A snapshot of one directory: the files in it, by name, with their blob
+ *  IDs, and its subdirectories with the IDs of their own trees.
+ *
+ *  Trees are stored in the tree store under the SHA-1 hash of their
+ *  encoding, so a directory that did not change between two commits is
+ *  the same object in both, and comparing two snapshots only has to look
+ *  inside subtrees whose IDs differ. A commit refers to the tree of the
+ *  working directory; committing a change to one file stores new trees
+ *  only for the directories on its path.
+ *
+ *  Paths are relative to the working directory, with '/' between
+ *  directories.
+ */
+public class Tree {
+
+    /** The first two bytes of an encoded tree. */
+    private static final int ENCODING_MAGIC = 0x4754; // "GT"
+    /** The version of the encoding written by encode. */
+    private static final int ENCODING_VERSION = 1;
+    /** Kinds of entry: a file with its blob ID, or a subdirectory with
+     *  its tree ID. */
+    static final int FILE = 0;
+    static final int TREE = 1;
+
+    /** Trees already read during this command. */
+    private static final ObjectCache<Tree> CACHE = new ObjectCache<>("tree", 16L << 20);
+
+    /** The entries of this directory, sorted by name. */
+    private final SortedMap<String, Entry> entries;
+
+    private Tree(SortedMap<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    /** Returns the entries of this tree, sorted by name. */
+    public SortedMap<String, Entry> getEntries() {
+        return Collections.unmodifiableSortedMap(entries);
+    }
+
+    /** Returns the tree TREEID, or an empty tree if TREEID is null. */
+    public static Tree read(String treeID) {
+        if (treeID == null) {
+            return new Tree(new TreeMap<>());
+        }
+        Tree tree = CACHE.get(treeID);
+        if (tree == null) {
+            byte[] data = Repository.TREE_STORE.read(treeID);
+            if (data == null) {
+                throw error("Missing tree: %s", treeID);
+            }
+            tree = decode(treeID, data);
+            CACHE.put(treeID, tree, 3L * data.length);
+        }
+        return tree;
+    }
+
+    public static ObjectCache<Tree> getCache() {
+        return CACHE;
+    }
+
+    /** Returns the ID of the tree of the files FILES, a map from path to
+     *  blob ID, storing that tree and all its subtrees. */
+    public static String write(Map<String, String> files) {
+        return build(files, true);
+    }
+
+    /** Returns the ID the tree of FILES would have, without storing it. */
+    public static String hash(Map<String, String> files) {
+        return build(files, false);
+    }
+
+    private static String build(Map<String, String> files, boolean store) {
+        Map<String, String> changes = new TreeMap<>(files);
+        return update(new TreeMap<>(), changes, store);
+    }
+
+    /** Returns the ID of the tree ROOTID with CHANGES applied, and stores
+     *  the new trees. CHANGES maps each changed path to its new blob ID, or
+     *  to null if the file was removed. Only the directories on the paths
+     *  of the changes are read and written again. */
+    public static String update(String rootID, Map<String, String> changes) {
+        return update(new TreeMap<>(read(rootID).entries), changes, true);
+    }
+
+    /** Applies CHANGES, with paths relative to the directory of ENTRIES,
+     *  and returns the ID of the resulting tree, storing it if STORE. An
+     *  empty subdirectory is dropped by its parent. */
+    private static String update(SortedMap<String, Entry> entries,
+                                 Map<String, String> changes, boolean store) {
+        Map<String, Map<String, String>> subdirChanges = new HashMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (change.getValue() == null) {
+                    entries.remove(path);
+                } else {
+                    entries.put(path, new Entry(FILE, change.getValue()));
+                }
+            } else {
+                subdirChanges.computeIfAbsent(path.substring(0, slash), d -> new TreeMap<>())
+                        .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> subdir : subdirChanges.entrySet()) {
+            String name = subdir.getKey();
+            Entry old = entries.get(name);
+            SortedMap<String, Entry> subEntries = new TreeMap<>();
+            if (old != null && old.kind == TREE) {
+                subEntries.putAll(read(old.id).entries);
+            }
+            String subtreeID = update(subEntries, subdir.getValue(), store);
+            if (subEntries.isEmpty()) {
+                entries.remove(name);
+            } else {
+                entries.put(name, new Entry(TREE, subtreeID));
+            }
+        }
+        Tree tree = new Tree(entries);
+        byte[] data = tree.encode();
+        String treeID = sha1((Object) data);
+        if (store) {
+            Repository.TREE_STORE.write(treeID, data);
+        }
+        return treeID;
+    }
+
+    /** Returns the files of the tree TREEID, by path, sorted. */
+    public static SortedMap<String, String> flatten(String treeID) {
+        SortedMap<String, String> files = new TreeMap<>();
+        flatten(treeID, "", files);
+        return files;
+    }
+
+    private static void flatten(String treeID, String prefix, Map<String, String> files) {
+        for (Map.Entry<String, Entry> entry : read(treeID).entries.entrySet()) {
+            Entry value = entry.getValue();
+            if (value.kind == FILE) {
+                files.put(prefix + entry.getKey(), value.id);
+            } else {
+                flatten(value.id, prefix + entry.getKey() + "/", files);
+            }
+        }
+    }
+
+    /** Returns the files that differ between the trees FIRSTID and
+     *  SECONDID, either of which may be null for no files, sorted by path.
+     *  Each maps to its blob IDs in the two trees, null where it is absent.
+     *  Subtrees with the same ID in both are skipped without being read. */
+    public static SortedMap<String, String[]> diff(String firstID, String secondID) {
+        SortedMap<String, String[]> changes = new TreeMap<>();
+        try (Trace.Phase phase = Trace.phase("diff trees")) {
+            diff(firstID, secondID, "", changes);
+        }
+        return changes;
+    }
+
+    private static void diff(String firstID, String secondID, String prefix,
+                             Map<String, String[]> changes) {
+        if (firstID != null && firstID.equals(secondID)) {
+            return;
+        }
+        SortedMap<String, Entry> first = read(firstID).entries;
+        SortedMap<String, Entry> second = read(secondID).entries;
+        SortedSet<String> names = new TreeSet<>(first.keySet());
+        names.addAll(second.keySet());
+        for (String name : names) {
+            Entry a = first.get(name);
+            Entry b = second.get(name);
+            String path = prefix + name;
+            // A name may be a file on one side and a directory on the other.
+            String blobA = a != null && a.kind == FILE ? a.id : null;
+            String blobB = b != null && b.kind == FILE ? b.id : null;
+            if (blobA != null || blobB != null) {
+                if (blobA == null || !blobA.equals(blobB)) {
+                    changes.put(path, new String[] {blobA, blobB});
+                }
+            }
+            String treeA = a != null && a.kind == TREE ? a.id : null;
+            String treeB = b != null && b.kind == TREE ? b.id : null;
+            if (treeA != null || treeB != null) {
+                diff(treeA, treeB, path + "/", changes);
+            }
+        }
+    }
+
+    // Encode the tree as a magic number and version, then each entry, sorted
+    // by name: its kind, its name and its raw ID.
+    private byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + 48 * entries.size());
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(ENCODING_MAGIC);
+            out.writeByte(ENCODING_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.writeByte(entry.getValue().kind);
+                writeString(out, entry.getKey());
+                writeID(out, entry.getValue().id);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw error("Internal error encoding tree.");
+        }
+    }
+
+    /** Returns the tree TREEID stored as DATA. */
+    public static Tree decode(String treeID, byte[] data) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readUnsignedShort() != ENCODING_MAGIC
+                    || in.readUnsignedByte() > ENCODING_VERSION) {
+                throw error("Unrecognized tree format: %s", treeID);
+            }
+            int count = in.readInt();
+            SortedMap<String, Entry> entries = new TreeMap<>();
+            for (int i = 0; i < count; i += 1) {
+                int kind = in.readUnsignedByte();
+                String name = readString(in);
+                entries.put(name, new Entry(kind, readID(in)));
+            }
+            return new Tree(entries);
+        } catch (IOException excp) {
+            throw error("Corrupt tree: %s", treeID);
+        }
+    }
+
+    /** One entry of a tree: a file or a subdirectory, and its ID. */
+    public static class Entry {
+        private final int kind;
+        private final String id;
+
+        Entry(int kind, String id) {
+            this.kind = kind;
+            this.id = id;
+        }
+
+        public boolean isTree() {
+            return kind == TREE;
+        }
+
+        /** Returns the blob ID of a file, or the tree ID of a directory. */
+        public String getID() {
+            return id;
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
@@ -39,15 +42,20 @@ class Utils {
     static String sha1(Object... vals) {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-1");
+            long hashed = 0;
             for (Object val : vals) {
                 if (val instanceof byte[]) {
                     md.update((byte[]) val);
+                    hashed += ((byte[]) val).length;
                 } else if (val instanceof String) {
-                    md.update(((String) val).getBytes(StandardCharsets.UTF_8));
+                    byte[] bytes = ((String) val).getBytes(StandardCharsets.UTF_8);
+                    md.update(bytes);
+                    hashed += bytes.length;
                 } else {
                     throw new IllegalArgumentException("improper type to sha1");
                 }
             }
+            Trace.count("bytes hashed", hashed);
             Formatter result = new Formatter();
             for (byte b : md.digest()) {
                 result.format("%02x", b);
@@ -221,6 +229,60 @@ class Utils {
         }
     }
 
+    /** Return an object of type T deserialized from BYTES, casting it to
+     *  EXPECTEDCLASS.  Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+
+
+    /* BINARY ENCODING UTILITIES */
+
+    /** Write STR to OUT as its length in bytes followed by its UTF-8
+     *  bytes.  Unlike DataOutput.writeUTF, STR may be of any length. */
+    static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Read a string written by writeString from IN. */
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Write the 40-digit hexadecimal ID to OUT as 20 raw bytes. */
+    static void writeID(DataOutputStream out, String id) throws IOException {
+        out.write(ObjectStore.toRawID(id));
+    }
+
+    /** Read an ID written by writeID from IN. */
+    static String readID(DataInputStream in) throws IOException {
+        byte[] raw = new byte[ObjectStore.RAW_ID_LENGTH];
+        in.readFully(raw);
+        return ObjectStore.fromRawID(raw);
+    }
+
+    /** Returns true if BYTES hold a serialized Java object, as written by
+     *  serialize, rather than one of gitlet's own binary encodings. */
+    static boolean isSerializedObject(byte[] bytes) {
+        return bytes.length >= 2
+            && (bytes[0] & 0xff) == 0xac && (bytes[1] & 0xff) == 0xed;
+    }
+
 
 
     /* MESSAGES AND ERROR REPORTING */